@@ -1,8 +1,43 @@
 import client.ClientUI;
+import client.Console;
 
 public class App {
+    private static final String USAGE = "Usage: java -jar FTPClient.jar [--script <file>|- [--host <host>] [--port <port>] [--user <username>]]";
+
     public static void main(String[] args) {
-        ClientUI client = new ClientUI();
-        client.launch();
+        String script = null, host = null, username = null;
+        int port = 21;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--script":
+                        script = args[++i];
+                        break;
+                    case "--host":
+                        host = args[++i];
+                        break;
+                    case "--port":
+                        port = Integer.parseInt(args[++i]);
+                        break;
+                    case "--user":
+                        username = args[++i];
+                        break;
+                    default:
+                        throw new IllegalArgumentException();
+                }
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        if (script == null) {
+            ClientUI client = new ClientUI();
+            client.launch();
+        } else {
+            // The standard output is left for the results of the commands
+            ClientUI client = new ClientUI(new Console(System.err));
+            System.exit(client.launchScript(script, host, port, username) ? 0 : 1);
+        }
     }
 }
@@ -0,0 +1,241 @@
+package api;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import config.Configuration;
+import entities.Student;
+import ftp.exceptions.FTPDataTransferException;
+import ftp.exceptions.FTPException;
+import ftp.exceptions.FTPIllegalReplyException;
+import services.StudentJson;
+import services.StudentService;
+import services.StudentSnapshot;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+import java.util.concurrent.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Read-only HTTP API serving the student data from the local snapshot of {@link StudentService}:
+ * <ul>
+ *     <li>{@code GET /students} - all students sorted by name, {@code ?name=} filters by a part of the name;</li>
+ *     <li>{@code GET /students/{id}} - student by id.</li>
+ * </ul>
+ * Requests never touch the FTP server, the snapshot is refreshed in the background. Every response carries
+ * the data version and the content hash as ETag, so clients may revalidate with If-None-Match and get 304
+ * until the data changes, also across restarts of the server.
+ */
+public class StudentHttpServer {
+    private static final Pattern STUDENT_PATH_PATTERN = Pattern.compile("^/students/(\\d+)/?$");
+
+    private final StudentService studentService;
+    private final HttpServer server;
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService refresher;
+    private final long refreshIntervalSeconds;
+    private volatile StudentList allStudents;
+
+    /**
+     * @param threads                Number of threads handling requests.
+     * @param queueCapacity          Maximum number of requests waiting for a thread, when exceeded
+     *                               requests are handled by the accepting thread, slowing down accepting.
+     * @param refreshIntervalSeconds Interval of downloading the data from the FTP server.
+     */
+    public StudentHttpServer(StudentService studentService, InetSocketAddress address, int threads, int queueCapacity, long refreshIntervalSeconds) throws IOException {
+        this.studentService = studentService;
+        this.refreshIntervalSeconds = refreshIntervalSeconds;
+
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), daemonThreadFactory("http-worker"), new ThreadPoolExecutor.CallerRunsPolicy());
+        refresher = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("http-refresher"));
+
+        server = HttpServer.create(address, 0);
+        server.setExecutor(executor);
+        server.createContext("/students", this::handle);
+    }
+
+    /**
+     * Creates the server from the configuration, or returns null if the HTTP API is disabled.
+     */
+    public static StudentHttpServer fromConfiguration(StudentService studentService) throws IOException {
+        int port = Configuration.getIntProperty("http.port", 0);
+        if (port <= 0)
+            return null;
+
+        return new StudentHttpServer(studentService,
+                new InetSocketAddress(Configuration.getProperty("http.address", "127.0.0.1"), port),
+                Math.max(Configuration.getIntProperty("http.threads", 4), 1),
+                Math.max(Configuration.getIntProperty("http.queue-capacity", 64), 1),
+                Math.max(Configuration.getIntProperty("http.refresh-interval", 30), 1));
+    }
+
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    public void start() {
+        refresher.scheduleWithFixedDelay(this::refresh, 0, refreshIntervalSeconds, TimeUnit.SECONDS);
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        refresher.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    private void refresh() {
+        try {
+            studentService.downloadStudentData();
+        } catch (IOException | FTPIllegalReplyException | FTPDataTransferException | FTPException ignored) {
+            // the local copy keeps being served, the next refresh will try again
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD")) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                sendJson(exchange, 405, error("Method not allowed"));
+                return;
+            }
+
+            // Single volatile read, the whole response is built from the same snapshot
+            StudentSnapshot snapshot = studentService.getSnapshot();
+            String path = exchange.getRequestURI().getPath();
+            Student student = null;
+            String nameFilter = null;
+            if (path.equals("/students") || path.equals("/students/")) {
+                try {
+                    nameFilter = getQueryParameter(exchange, "name");
+                } catch (IllegalArgumentException e) {
+                    sendJson(exchange, 400, error("Malformed query string"));
+                    return;
+                }
+            } else {
+                Matcher m = STUDENT_PATH_PATTERN.matcher(path);
+                try {
+                    if (m.matches())
+                        student = snapshot.getStudent(Long.parseLong(m.group(1)));
+                } catch (NumberFormatException ignored) {
+                }
+                if (student == null) {
+                    sendJson(exchange, 404, error("Student not found"));
+                    return;
+                }
+            }
+
+            // The local snapshot version restarts with the process, so it can't identify the data for clients
+            String etag = "\"" + snapshot.getDataVersion() + "-" + snapshot.getContentHash() + "\"";
+            exchange.getResponseHeaders().set("ETag", etag);
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            if (matchesETag(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+            if (student != null)
+                sendJson(exchange, 200, StudentJson.toJson(student));
+            else if (nameFilter == null || nameFilter.isEmpty())
+                sendJson(exchange, 200, listAllStudents(snapshot));
+            else sendJson(exchange, 200, listStudents(snapshot, nameFilter));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * The whole list is built once per snapshot, filtered lists are built for each request.
+     */
+    private byte[] listAllStudents(StudentSnapshot snapshot) {
+        StudentList list = allStudents;
+        if (list == null || list.snapshot != snapshot) {
+            list = new StudentList(snapshot, listStudents(snapshot, null).getBytes(StandardCharsets.UTF_8));
+            allStudents = list;
+        }
+        return list.body;
+    }
+
+    private static String listStudents(StudentSnapshot snapshot, String nameFilter) {
+        String filter = nameFilter == null ? null : nameFilter.toLowerCase();
+        return snapshot.getStudents().values().stream()
+                .filter(student -> filter == null || student.getName().toLowerCase().contains(filter))
+                .sorted(Comparator.comparing(Student::getName))
+                .map(StudentJson::toJson)
+                .collect(Collectors.joining(",", "{\"version\":" + snapshot.getDataVersion() + ",\"students\":[", "]}"));
+    }
+
+    private static boolean matchesETag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null)
+            return false;
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/"))
+                tag = tag.substring(2);
+            if (tag.equals("*") || tag.equals(etag))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @throws IllegalArgumentException If the query contains a malformed escape sequence.
+     */
+    private static String getQueryParameter(HttpExchange exchange, String name) throws UnsupportedEncodingException {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null)
+            return null;
+        for (String parameter : query.split("&")) {
+            int eq = parameter.indexOf('=');
+            String key = eq == -1 ? parameter : parameter.substring(0, eq);
+            if (URLDecoder.decode(key, "UTF-8").equals(name))
+                return eq == -1 ? "" : URLDecoder.decode(parameter.substring(eq + 1), "UTF-8");
+        }
+        return null;
+    }
+
+    private static void sendJson(HttpExchange exchange, int code, String body) throws IOException {
+        sendJson(exchange, code, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void sendJson(HttpExchange exchange, int code, byte[] bytes) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            exchange.sendResponseHeaders(code, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(bytes);
+        }
+    }
+
+    private static String error(String message) {
+        return "{\"error\":" + StudentJson.toJsonString(message) + "}";
+    }
+
+    private static ThreadFactory daemonThreadFactory(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static class StudentList {
+        final StudentSnapshot snapshot;
+        final byte[] body;
+
+        StudentList(StudentSnapshot snapshot, byte[] body) {
+            this.snapshot = snapshot;
+            this.body = body;
+        }
+    }
+}
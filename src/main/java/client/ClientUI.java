@@ -1,27 +1,109 @@
 package client;
 
+import api.StudentHttpServer;
 import ftp.FTPClient;
+import ftp.FTPReplicaSet;
+import ftp.FTPSessionPool;
+import ftp.TransferPriority;
 import ftp.exceptions.FTPException;
 import ftp.exceptions.FTPIllegalReplyException;
+import services.StudentService;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 
 public class ClientUI {
-    private final Console console = new Console();
+    private final Console console;
     private FTPClient ftpClient;
 
+    public ClientUI() {
+        this(new Console());
+    }
+
+    /**
+     * @param console Console for prompts and messages, in script mode it shouldn't print to the standard output.
+     */
+    public ClientUI(Console console) {
+        this.console = console;
+    }
+
     public void launch() {
         ftpClient = new FTPClient();
+        ftpClient.setTransferPriority(TransferPriority.INTERACTIVE);
         if (!connectAndLogin())
             return;
 
-        CommandHandler ch = new CommandHandler(console, ftpClient);
+        List<FTPClient> replicaClients = connectReplicas();
+        FTPReplicaSet replicas = createReplicaSet(replicaClients);
+        StudentService studentService = new StudentService(replicas);
+        StudentHttpServer httpServer = startHttpServer(studentService);
+
+        CommandHandler ch = new CommandHandler(console, studentService);
         ch.mainLoop();
 
+        if (httpServer != null)
+            httpServer.stop();
+        close(replicas, replicaClients);
+    }
+
+    /**
+     * Runs the commands of the script without user interaction, see {@link ScriptCommandHandler}.
+     * The password is taken from the {@code FTP_PASSWORD} environment variable. Connection parameters
+     * which are not given are asked for, unless the script is read from the standard input.
+     *
+     * @param scriptPath Path to the script file, or {@code -} to read it from the standard input.
+     * @param host       Server address, or null.
+     * @param username   Username, or null.
+     * @return Whether the script has been run and all its commands have succeeded.
+     */
+    public boolean launchScript(String scriptPath, String host, int port, String username) {
+        boolean standardInput = scriptPath.equals("-");
+        String password = System.getenv("FTP_PASSWORD");
+        if (standardInput && (host == null || username == null || password == null)) {
+            console.error("Reading the script from the standard input requires --host, --user and FTP_PASSWORD to be set.");
+            return false;
+        }
+
+        ftpClient = new FTPClient();
+        if (host == null)
+            host = console.input("FTP server IP address: ");
         try {
+            ftpClient.connect(host, port);
+        } catch (IOException | FTPIllegalReplyException | FTPException e) {
+            console.error(e.getMessage());
+            return false;
+        }
+        if (username == null)
+            username = console.input("Username: ");
+        if (password == null)
+            password = console.inputPassword("Password: ");
+        try {
+            ftpClient.login(username, password);
+        } catch (IOException | FTPIllegalReplyException | FTPException e) {
+            console.error(e.getMessage());
             ftpClient.disconnect();
-        } catch (IllegalStateException ignored) {
+            return false;
+        }
+
+        List<FTPClient> replicaClients = connectReplicas();
+        FTPReplicaSet replicas = createReplicaSet(replicaClients);
+        try (BufferedReader script = standardInput
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Paths.get(scriptPath), StandardCharsets.UTF_8)) {
+            return new ScriptCommandHandler(new StudentService(replicas), System.out).run(script);
+        } catch (IOException e) {
+            console.error("Cannot read the script: " + e.getMessage());
+            return false;
+        } finally {
+            close(replicas, replicaClients);
         }
     }
 
@@ -46,4 +128,53 @@ public class ClientUI {
 
         return true;
     }
+
+    /**
+     * @return Clients of the replica servers from the configuration, starting with the main one.
+     */
+    private List<FTPClient> connectReplicas() {
+        List<FTPClient> clients = new ArrayList<>();
+        clients.add(ftpClient);
+        for (Map.Entry<String, Integer> address : FTPReplicaSet.getConfiguredReplicaAddresses()) {
+            try {
+                clients.add(ftpClient.newSession(address.getKey(), address.getValue()));
+            } catch (IOException | FTPIllegalReplyException | FTPException e) {
+                console.error(e.getMessage());
+                console.println("Unable to connect to replica " + address.getKey() + ":" + address.getValue() + ", skipping it.");
+            }
+        }
+        return clients;
+    }
+
+    private FTPReplicaSet createReplicaSet(List<FTPClient> clients) {
+        List<FTPSessionPool> servers = new ArrayList<>();
+        for (FTPClient client : clients)
+            servers.add(new FTPSessionPool(client, 1));
+        return FTPReplicaSet.fromConfiguration(servers);
+    }
+
+    private static void close(FTPReplicaSet replicas, List<FTPClient> clients) {
+        replicas.close();
+        for (FTPClient client : clients) {
+            try {
+                client.disconnect();
+            } catch (IllegalStateException ignored) {
+            }
+        }
+    }
+
+    private StudentHttpServer startHttpServer(StudentService studentService) {
+        try {
+            StudentHttpServer httpServer = StudentHttpServer.fromConfiguration(studentService);
+            if (httpServer != null) {
+                httpServer.start();
+                console.println("HTTP API is available at http://" + httpServer.getAddress().getHostString() + ":" + httpServer.getAddress().getPort() + "/students");
+            }
+            return httpServer;
+        } catch (IOException e) {
+            console.error(e.getMessage());
+            console.println("Unable to start HTTP API.");
+            return null;
+        }
+    }
 }
@@ -5,12 +5,15 @@ import ftp.FTPClient;
 import ftp.exceptions.FTPDataTransferException;
 import ftp.exceptions.FTPException;
 import ftp.exceptions.FTPIllegalReplyException;
+import services.StudentQuery;
 import services.StudentService;
 
 import java.io.IOException;
 import java.util.*;
 
 public class CommandHandler {
+    static final int DEFAULT_QUERY_LIMIT = 20;
+
     private final Console console;
     private final StudentService studentService;
 
@@ -18,6 +21,7 @@ public class CommandHandler {
         Commands commands = new Commands();
         put("list", commands.LIST);
         put("student", commands.STUDENT);
+        put("find", commands.FIND);
         put("add", commands.ADD);
         put("remove", commands.REMOVE);
         put("help", commands.HELP);
@@ -25,8 +29,12 @@ public class CommandHandler {
     }};
 
     public CommandHandler(Console console, FTPClient ftpClient) {
+        this(console, new StudentService(ftpClient));
+    }
+
+    public CommandHandler(Console console, StudentService studentService) {
         this.console = console;
-        this.studentService = new StudentService(ftpClient);
+        this.studentService = studentService;
     }
 
     public void mainLoop() {
@@ -45,6 +53,46 @@ public class CommandHandler {
         }
     }
 
+    /**
+     * Builds a query from the user input, empty values mean the defaults.
+     *
+     * @param idRange Range of ids in the form {@code min-max}, either bound may be omitted.
+     * @throws IllegalArgumentException If a value is invalid, with a message for the user.
+     */
+    static StudentQuery parseQuery(String name, String idRange, String order, String offset, String limit) throws IllegalArgumentException {
+        StudentQuery query = new StudentQuery().nameContains(name.trim());
+        if (!idRange.trim().isEmpty()) {
+            String[] bounds = idRange.trim().split("\\s*-\\s*", -1);
+            try {
+                if (bounds.length > 2)
+                    throw new NumberFormatException();
+                long minId = bounds[0].isEmpty() ? 0 : Long.parseLong(bounds[0]);
+                long maxId = bounds.length == 1 ? minId : bounds[1].isEmpty() ? Long.MAX_VALUE : Long.parseLong(bounds[1]);
+                query.idRange(minId, maxId);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid ID range.");
+            }
+        }
+        switch (order.trim().toLowerCase()) {
+            case "":
+            case "name":
+                query.orderBy(StudentQuery.Order.NAME);
+                break;
+            case "id":
+                query.orderBy(StudentQuery.Order.ID);
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid order, expected name or id.");
+        }
+        try {
+            query.page(offset.trim().isEmpty() ? 0 : Integer.parseInt(offset.trim()),
+                    limit.trim().isEmpty() ? DEFAULT_QUERY_LIMIT : Integer.parseInt(limit.trim()));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid offset or limit.");
+        }
+        return query;
+    }
+
     private void executeCommand(String commandName) {
         Command command = commands.get(commandName);
         if (command != null) {
@@ -83,6 +131,38 @@ public class CommandHandler {
             }
         };
 
+        private final Command FIND = new Command("find students by name and id range, page by page") {
+            public void execute() {
+                StudentQuery query;
+                try {
+                    query = parseQuery(console.input("Name contains (empty for any): "),
+                            console.input("ID range, e.g. 10-20 (empty for any): "),
+                            console.input("Order by (name/id, empty for name): "),
+                            console.input("Offset (empty for 0): "),
+                            console.input("Limit (empty for " + DEFAULT_QUERY_LIMIT + "): "));
+                } catch (IllegalArgumentException e) {
+                    console.println(e.getMessage());
+                    return;
+                }
+
+                List<Student> students;
+                try {
+                    students = studentService.queryStudentData(query);
+                } catch (IOException | FTPIllegalReplyException | FTPDataTransferException | FTPException e) {
+                    console.error(e.getMessage());
+                    console.println("Unable to retrieve information from server, using data from local copy...");
+                    students = studentService.queryLocalStudentData(query);
+                }
+                if (students.isEmpty()) {
+                    console.println("No students found.");
+                    return;
+                }
+                students.forEach(console::println);
+                if (students.size() == query.getLimit())
+                    console.println("Use offset " + (query.getOffset() + query.getLimit()) + " to see the next page.");
+            }
+        };
+
         private final Command ADD = new Command("add new student") {
             public void execute() {
                 String studentName = console.input("Name: ");
@@ -91,7 +171,6 @@ public class CommandHandler {
                     return;
                 }
 
-                retrieveCurrentStudentData();
                 try {
                     Student student = studentService.createStudent(studentName);
                     console.println("Student created: " + student);
@@ -112,14 +191,10 @@ public class CommandHandler {
                     return;
                 }
 
-                Map<Long, Student> students = retrieveCurrentStudentData();
-                if (!students.containsKey(studentId)) {
-                    console.println("Student with id=" + studentId + " not found.");
-                    return;
-                }
                 try {
-                    studentService.removeStudent(studentId);
-                    console.println("Student removed.");
+                    if (studentService.removeStudent(studentId))
+                        console.println("Student removed.");
+                    else console.println("Student with id=" + studentId + " not found.");
                 } catch (IOException | FTPIllegalReplyException | FTPDataTransferException | FTPException e) {
                     console.error(e.getMessage());
                     console.println("Cannot remove student!");
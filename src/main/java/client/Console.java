@@ -1,24 +1,34 @@
 package client;
 
+import java.io.PrintStream;
 import java.util.Scanner;
 
 public class Console {
     private final Scanner scanner = new Scanner(System.in);
+    private final PrintStream out;
+
+    public Console() {
+        this(System.out);
+    }
+
+    public Console(PrintStream out) {
+        this.out = out;
+    }
 
     public void print(String s) {
-        System.out.print(s);
+        out.print(s);
     }
 
     public void println(String s) {
-        System.out.println(s);
+        out.println(s);
     }
 
     public void println(Object o) {
-        System.out.println(o);
+        out.println(o);
     }
 
     public void error(String s) {
-        System.out.println("[!] " + s);
+        out.println("[!] " + s);
     }
 
     public String input() {
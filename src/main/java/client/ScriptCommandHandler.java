@@ -0,0 +1,191 @@
+package client;
+
+import entities.Student;
+import ftp.exceptions.FTPDataTransferException;
+import ftp.exceptions.FTPException;
+import ftp.exceptions.FTPIllegalReplyException;
+import services.StudentJson;
+import services.StudentQuery;
+import services.StudentService;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Runs commands from a script, one per line with arguments on the same line, e.g. {@code add John}, {@code remove 3}
+ * or {@code find name=John id=10-20 order=id offset=0 limit=10}, where all parameters of {@code find} are optional.
+ * Empty lines and lines starting with {@code #} are skipped, {@code exit} stops the script.
+ * <p>
+ * The student data is downloaded once at the start. Consecutive changes are applied together and uploaded
+ * in one transfer, which happens before the next read command or at the end of the script.
+ * The result of every command is printed as a line of JSON, in the order of the commands.
+ */
+public class ScriptCommandHandler {
+    /** Parameter of find, the value lasts until the next parameter, so names may contain spaces. */
+    private static final Pattern QUERY_PARAMETER_PATTERN = Pattern.compile("(\\w+)=(.*?)\\s*(?=\\s\\w+=|$)");
+
+    private final StudentService studentService;
+    private final PrintStream output;
+    private final List<PendingChange> pendingChanges = new ArrayList<>();
+    private boolean failed;
+
+    public ScriptCommandHandler(StudentService studentService, PrintStream output) {
+        this.studentService = studentService;
+        this.output = output;
+    }
+
+    /**
+     * @return Whether all the commands have succeeded.
+     */
+    public boolean run(BufferedReader script) throws IOException {
+        try {
+            studentService.downloadStudentData();
+        } catch (IOException | FTPIllegalReplyException | FTPDataTransferException | FTPException e) {
+            output.println("{\"status\":\"error\",\"error\":" + StudentJson.toJsonString("Unable to retrieve information from server: " + e.getMessage()) + "}");
+            return false;
+        }
+
+        String line;
+        int lineNumber = 0;
+        while ((line = script.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+
+            int separator = line.indexOf(' ');
+            String commandName = separator != -1 ? line.substring(0, separator) : line;
+            String argument = separator != -1 ? line.substring(separator + 1).trim() : "";
+            if (commandName.equals("exit"))
+                break;
+            executeCommand(lineNumber, commandName, argument);
+        }
+        flushChanges();
+        return !failed;
+    }
+
+    private void executeCommand(int lineNumber, String commandName, String argument) {
+        String prefix = "{\"line\":" + lineNumber + ",\"command\":" + StudentJson.toJsonString(commandName) + ",";
+        switch (commandName) {
+            case "list":
+                flushChanges();
+                output.println(prefix + "\"status\":\"ok\",\"students\":" + studentService.getLocalStudentData().values().stream()
+                        .sorted(Comparator.comparing(Student::getName))
+                        .map(StudentJson::toJson)
+                        .collect(Collectors.joining(",", "[", "]")) + "}");
+                break;
+            case "student": {
+                Long studentId = parseStudentId(prefix, argument);
+                if (studentId == null)
+                    break;
+                flushChanges();
+                Student student = studentService.getLocalStudentData().get(studentId);
+                output.println(prefix + (student != null ? "\"status\":\"ok\",\"student\":" + StudentJson.toJson(student) : "\"status\":\"not_found\"") + "}");
+                break;
+            }
+            case "find": {
+                StudentQuery query;
+                try {
+                    Map<String, String> parameters = new HashMap<>();
+                    Matcher m = QUERY_PARAMETER_PATTERN.matcher(argument);
+                    while (m.find())
+                        parameters.put(m.group(1), m.group(2));
+                    query = CommandHandler.parseQuery(parameters.getOrDefault("name", ""), parameters.getOrDefault("id", ""),
+                            parameters.getOrDefault("order", ""), parameters.getOrDefault("offset", ""), parameters.getOrDefault("limit", ""));
+                } catch (IllegalArgumentException e) {
+                    printError(prefix, e.getMessage());
+                    break;
+                }
+                flushChanges();
+                output.println(prefix + "\"status\":\"ok\",\"students\":" + studentService.queryLocalStudentData(query).stream()
+                        .map(StudentJson::toJson)
+                        .collect(Collectors.joining(",", "[", "]")) + "}");
+                break;
+            }
+            case "add":
+                if (argument.isEmpty() || argument.contains("\"")) {
+                    printError(prefix, "Student name must be non-empty and must not contain quotes");
+                    break;
+                }
+                pendingChanges.add(new PendingChange(prefix, StudentService.addition(argument)
+                        .andThen(student -> "\"status\":\"ok\",\"student\":" + StudentJson.toJson(student))));
+                break;
+            case "remove": {
+                Long studentId = parseStudentId(prefix, argument);
+                if (studentId == null)
+                    break;
+                pendingChanges.add(new PendingChange(prefix, students ->
+                        students.remove(studentId) != null ? "\"status\":\"ok\"" : "\"status\":\"not_found\""));
+                break;
+            }
+            default:
+                printError(prefix, "Unknown command");
+        }
+    }
+
+    /**
+     * Uploads the pending changes at once and prints their results.
+     */
+    private void flushChanges() {
+        if (pendingChanges.isEmpty())
+            return;
+
+        try {
+            List<String> results = studentService.modify(students -> pendingChanges.stream()
+                    .map(change -> change.apply.apply(students))
+                    .collect(Collectors.toList()));
+            for (int i = 0; i < pendingChanges.size(); i++)
+                pendingChanges.get(i).result = results.get(i);
+        } catch (IOException | FTPIllegalReplyException | FTPDataTransferException | FTPException e) {
+            failed = true;
+            for (PendingChange change : pendingChanges)
+                change.result = "\"status\":\"error\",\"error\":" + StudentJson.toJsonString("Cannot save changes: " + e.getMessage());
+        }
+        for (PendingChange change : pendingChanges) {
+            output.println(change.prefix + change.result + "}");
+            change.followingLines.forEach(output::println);
+        }
+        pendingChanges.clear();
+    }
+
+    private Long parseStudentId(String prefix, String argument) {
+        try {
+            return Long.parseLong(argument);
+        } catch (NumberFormatException e) {
+            printError(prefix, "Invalid student id");
+            return null;
+        }
+    }
+
+    private void printError(String prefix, String message) {
+        failed = true;
+        String line = prefix + "\"status\":\"error\",\"error\":" + StudentJson.toJsonString(message) + "}";
+        // Keeps the order of the output lines while the results of the changes are not known yet
+        if (pendingChanges.isEmpty())
+            output.println(line);
+        else pendingChanges.get(pendingChanges.size() - 1).followingLines.add(line);
+    }
+
+    private static class PendingChange {
+        final String prefix;
+        /** Applies the change to the data and returns the result fields of the output line. */
+        final Function<Map<Long, Student>, String> apply;
+        final List<String> followingLines = new ArrayList<>();
+        String result;
+
+        PendingChange(String prefix, Function<Map<Long, Student>, String> apply) {
+            this.prefix = prefix;
+            this.apply = apply;
+        }
+    }
+}
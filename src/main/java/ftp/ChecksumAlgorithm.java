@@ -0,0 +1,127 @@
+package ftp;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+public enum ChecksumAlgorithm {
+    CRC32("CRC32", "XCRC", 8),
+    MD5("MD5", "XMD5", 32),
+    SHA_256("SHA-256", "XSHA256", 64);
+
+    private final String hashName;
+    private final String legacyCommand;
+    private final int hexLength;
+
+    ChecksumAlgorithm(String hashName, String legacyCommand, int hexLength) {
+        this.hashName = hashName;
+        this.legacyCommand = legacyCommand;
+        this.hexLength = hexLength;
+    }
+
+    /**
+     * @return Name of the algorithm in the HASH command and FEAT reply.
+     */
+    public String getHashName() {
+        return hashName;
+    }
+
+    /**
+     * @return Non-standard command computing the checksum, supported by some servers instead of HASH.
+     */
+    public String getLegacyCommand() {
+        return legacyCommand;
+    }
+
+    public int getHexLength() {
+        return hexLength;
+    }
+
+    /**
+     * @return Algorithm with the given HASH name or constant name, or null if there is no such algorithm.
+     */
+    public static ChecksumAlgorithm forName(String name) {
+        for (ChecksumAlgorithm algorithm : values()) {
+            if (algorithm.hashName.equalsIgnoreCase(name) || algorithm.name().equalsIgnoreCase(name))
+                return algorithm;
+        }
+        return null;
+    }
+
+    public Checksum newChecksum() {
+        if (this == CRC32)
+            return new Checksum(new CRC32());
+        try {
+            return new Checksum(MessageDigest.getInstance(hashName));
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support MD5 and SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Checksum computed incrementally over the data passing through a data connection.
+     */
+    public final class Checksum implements DataTransferObserver {
+        private final java.util.zip.Checksum crc;
+        private final MessageDigest digest;
+        private String value;
+        private boolean lineBreaks;
+
+        private Checksum(java.util.zip.Checksum crc) {
+            this.crc = crc;
+            this.digest = null;
+        }
+
+        private Checksum(MessageDigest digest) {
+            this.crc = null;
+            this.digest = digest;
+        }
+
+        public ChecksumAlgorithm getAlgorithm() {
+            return ChecksumAlgorithm.this;
+        }
+
+        @Override
+        public void onData(byte[] buffer, int offset, int length) {
+            if (value != null)
+                throw new IllegalStateException("Checksum already computed");
+            if (crc != null)
+                crc.update(buffer, offset, length);
+            else digest.update(buffer, offset, length);
+            for (int i = offset; i < offset + length && !lineBreaks; i++)
+                lineBreaks = buffer[i] == '\n' || buffer[i] == '\r';
+        }
+
+        /**
+         * @return Whether the data contains line breaks, which the server may convert in ASCII mode.
+         */
+        public boolean containsLineBreaks() {
+            return lineBreaks;
+        }
+
+        /**
+         * Completes the computation, no more data may be added afterwards.
+         *
+         * @return Checksum as a lowercase hex string.
+         */
+        public String getValue() {
+            if (value == null) {
+                if (crc != null) {
+                    value = String.format("%08x", crc.getValue());
+                } else {
+                    StringBuilder sb = new StringBuilder();
+                    for (byte b : digest.digest())
+                        sb.append(String.format("%02x", b));
+                    value = sb.toString();
+                }
+            }
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return hashName + " " + getValue();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package ftp;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Receives every chunk of data passing through a data connection, right in the copy loop.
+ */
+@FunctionalInterface
+public interface DataTransferObserver {
+    void onData(byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * @param other Observer notified after this one, may be null.
+     */
+    default DataTransferObserver andThen(DataTransferObserver other) {
+        if (other == null)
+            return this;
+        return (buffer, offset, length) -> {
+            onData(buffer, offset, length);
+            other.onData(buffer, offset, length);
+        };
+    }
+
+    default InputStream observe(InputStream input) {
+        return new FilterInputStream(input) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1)
+                    onData(new byte[]{(byte) b}, 0, 1);
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int bytesRead = super.read(buffer, offset, length);
+                if (bytesRead > 0)
+                    onData(buffer, offset, bytesRead);
+                return bytesRead;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                throw new IOException("Skipping observed data is not supported");
+            }
+
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+        };
+    }
+
+    default OutputStream observe(OutputStream output) {
+        return new FilterOutputStream(output) {
+            @Override
+            public void write(int b) throws IOException {
+                onData(new byte[]{(byte) b}, 0, 1);
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                onData(buffer, offset, length);
+                out.write(buffer, offset, length);
+            }
+        };
+    }
+}
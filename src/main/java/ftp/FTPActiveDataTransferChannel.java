@@ -1,14 +1,32 @@
 package ftp;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 
 public class FTPActiveDataTransferChannel implements FTPDataTransferChannel {
+    private final FTPActiveListenerPool listenerPool;
     private final ServerSocket serverSocket;
+    private final InetAddress expectedPeer;
+    private boolean accepted;
+    private boolean disposed;
 
-    public FTPActiveDataTransferChannel() throws IOException {
-        serverSocket = new ServerSocket(0);
+    /**
+     * @param expectedPeer Address the server connects from, connections from other hosts are rejected.
+     *                     May be null to accept any connection.
+     * @param acceptTimeoutMillis How long to wait for the server to connect, 0 means no timeout.
+     */
+    public FTPActiveDataTransferChannel(FTPActiveListenerPool listenerPool, InetAddress expectedPeer, int acceptTimeoutMillis) throws IOException {
+        this.listenerPool = listenerPool;
+        this.serverSocket = listenerPool.acquire();
+        this.expectedPeer = expectedPeer;
+        try {
+            serverSocket.setSoTimeout(acceptTimeoutMillis);
+        } catch (IOException e) {
+            listenerPool.release(serverSocket);
+            throw e;
+        }
     }
 
     public int getLocalPort() {
@@ -16,11 +34,49 @@ public class FTPActiveDataTransferChannel implements FTPDataTransferChannel {
     }
 
     public Socket openConnection() throws IOException {
-        return serverSocket.accept();
+        while (true) {
+            Socket connection = serverSocket.accept();
+            // The listener is reused, so make sure it's the server and not someone else
+            if (expectedPeer == null || expectedPeer.equals(connection.getInetAddress())) {
+                synchronized (this) {
+                    accepted = true;
+                }
+                return connection;
+            }
+            try {
+                connection.close();
+            } catch (IOException ignored) {
+            }
+        }
     }
 
+    /**
+     * Closes the listener, which is then dropped by the pool.
+     */
     @Override
-    public void dispose() {
+    public synchronized void cancel() {
+        if (disposed)
+            return;
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Returns the listener to the pool only if the server has connected. Otherwise the server may still connect
+     * after a timeout, error or cancellation, and that connection would be taken by the next transfer,
+     * so the listener is closed.
+     */
+    @Override
+    public synchronized void dispose() {
+        if (disposed)
+            return;
+        disposed = true;
+        if (accepted) {
+            listenerPool.release(serverSocket);
+            return;
+        }
         try {
             serverSocket.close();
         } catch (IOException ignored) {
@@ -0,0 +1,135 @@
+package ftp;
+
+import config.Configuration;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ServerSocket;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Pool of pre-bound listening sockets used for active mode data connections.
+ * Listeners are bound within the configured port range and returned to the pool
+ * after each successful accept, so they are reused across transfers and sessions.
+ */
+public class FTPActiveListenerPool {
+    private static final String PORT_RANGE = Configuration.getProperty("ftp.active-port-range", "");
+    private static final int POOL_SIZE = Configuration.getIntProperty("ftp.active-pool-size", 2);
+
+    private final int minPort;
+    private final int maxPort;
+    private final int poolSize;
+    private final Deque<ServerSocket> idleListeners = new ArrayDeque<>();
+    private int nextPort;
+
+    /**
+     * @param minPort  Lower bound of the port range, or 0 to use ephemeral ports.
+     * @param maxPort  Upper bound of the port range (inclusive).
+     * @param poolSize Maximum number of idle listeners kept bound.
+     */
+    public FTPActiveListenerPool(int minPort, int maxPort, int poolSize) {
+        if (minPort < 0 || maxPort > 65535 || minPort > maxPort)
+            throw new IllegalArgumentException("Illegal port range " + minPort + "-" + maxPort);
+        this.minPort = minPort;
+        this.maxPort = maxPort;
+        this.poolSize = Math.max(poolSize, 0);
+        this.nextPort = minPort;
+    }
+
+    public static FTPActiveListenerPool getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    /**
+     * Binds listeners until the pool is full, so the following transfers don't pay for it.
+     * Failures are ignored, missing listeners will be bound on demand.
+     */
+    public synchronized void prestart() {
+        try {
+            while (idleListeners.size() < poolSize)
+                idleListeners.addLast(bind());
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * @throws IOException If there is no free port left in the configured range.
+     */
+    public synchronized ServerSocket acquire() throws IOException {
+        ServerSocket listener;
+        while ((listener = idleListeners.pollFirst()) != null) {
+            if (!listener.isClosed())
+                return listener;
+        }
+        return bind();
+    }
+
+    /**
+     * @param listener Listener the server has already connected to. A listener the server may still connect to
+     *                 must be closed instead, not to pass a late connection to another transfer.
+     */
+    public synchronized void release(ServerSocket listener) {
+        if (listener.isClosed())
+            return;
+        if (idleListeners.size() < poolSize)
+            idleListeners.addLast(listener);
+        else close(listener);
+    }
+
+    public synchronized void close() {
+        ServerSocket listener;
+        while ((listener = idleListeners.pollFirst()) != null)
+            close(listener);
+    }
+
+    private ServerSocket bind() throws IOException {
+        if (minPort == 0)
+            return new ServerSocket(0);
+
+        int rangeSize = maxPort - minPort + 1;
+        for (int i = 0; i < rangeSize; i++) {
+            int port = nextPort;
+            nextPort = port == maxPort ? minPort : port + 1;
+            try {
+                return new ServerSocket(port);
+            } catch (BindException ignored) {
+                // port is taken by another listener or application, try the next one
+            }
+        }
+        throw new BindException("No free port in active mode port range " + minPort + "-" + maxPort);
+    }
+
+    private static void close(ServerSocket listener) {
+        try {
+            listener.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static class DefaultHolder {
+        private static final FTPActiveListenerPool INSTANCE = createDefault();
+
+        private static FTPActiveListenerPool createDefault() {
+            int minPort = 0, maxPort = 0;
+            String[] bounds = PORT_RANGE.split("-");
+            try {
+                if (bounds.length == 2) {
+                    minPort = Integer.parseInt(bounds[0].trim());
+                    maxPort = Integer.parseInt(bounds[1].trim());
+                }
+            } catch (NumberFormatException e) {
+                minPort = maxPort = 0;
+            }
+
+            FTPActiveListenerPool pool;
+            try {
+                pool = new FTPActiveListenerPool(minPort, maxPort, POOL_SIZE);
+            } catch (IllegalArgumentException e) {
+                pool = new FTPActiveListenerPool(0, 0, POOL_SIZE);
+            }
+            pool.prestart();
+            return pool;
+        }
+    }
+}
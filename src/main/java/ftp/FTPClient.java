@@ -1,20 +1,36 @@
 package ftp;
 
 import config.Configuration;
+import ftp.exceptions.FTPChecksumException;
 import ftp.exceptions.FTPDataTransferException;
 import ftp.exceptions.FTPException;
 import ftp.exceptions.FTPIllegalReplyException;
+import ftp.exceptions.FTPTransferCancelledException;
 
+import javax.net.ssl.SSLSocket;
 import java.io.*;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class FTPClient {
     private static final Pattern PASV_PATTERN = Pattern.compile("(?:\\d{1,3},){5}\\d{1,3}");
+    private static final Pattern TRANSFER_SIZE_PATTERN = Pattern.compile("\\((\\d+) bytes\\)");
     private static final int DATA_TRANSFER_BUFFER_SIZE = Configuration.getIntProperty("ftp.dt-buffer-size", 8 * 1024);
     private static final int WELCOME_MESSAGES_COUNT = Configuration.getIntProperty("ftp.welcome-messages-count", 1);
+    private static final String ACTIVE_MODE_ADDRESS = Configuration.getProperty("ftp.active-address", "");
+    private static final boolean ACTIVE_MODE_EXTENDED = Configuration.getBooleanProperty("ftp.active-extended", false);
+    private static final int COMMIT_LOCK_TIMEOUT = Configuration.getIntProperty("ftp.commit-lock-timeout", 60);
+    private static final boolean RENAME_REPLACE_FALLBACK = Configuration.getBooleanProperty("ftp.rename-replace-fallback", false);
+    /** Timeout of connecting and of every blocking socket read, 0 means no timeout. */
+    private static final int SOCKET_TIMEOUT_MILLIS = Math.max(0, Configuration.getIntProperty("ftp.socket-timeout", 60)) * 1000;
 
     private String host;
     private int port = 21;
@@ -22,6 +38,18 @@ public class FTPClient {
     private boolean connected;
     private boolean authenticated;
     private boolean activeMode = Configuration.getBooleanProperty("ftp.active-mode", false);
+    private boolean mlsdSupported = true;
+    private ChecksumAlgorithm checksumAlgorithm = ChecksumAlgorithm.forName(Configuration.getProperty("ftp.checksum-algorithm", ""));
+    private ChecksumAlgorithm.Checksum lastChecksum;
+    private Map<String, String> features;
+    private FTPTransferScheduler transferScheduler = FTPTransferScheduler.getDefault();
+    private TransferPriority transferPriority = TransferPriority.NORMAL;
+    private long transferRateLimit;
+    private TransferListener transferListener;
+    private boolean tlsEnabled = Configuration.getBooleanProperty("ftp.tls", false);
+    private FTPSContext tlsContext;
+    private boolean dataProtected;
+    private String selectedHashAlgorithm;
     private FTPCommunicationChannel communication;
 
     public String getHost() {
@@ -48,6 +76,98 @@ public class FTPClient {
         return activeMode;
     }
 
+    public ChecksumAlgorithm getChecksumAlgorithm() {
+        return checksumAlgorithm;
+    }
+
+    /**
+     * Enables computing the checksum of transferred files on the fly. If the server supports HASH
+     * or the legacy command of the algorithm, the checksum is verified after each transfer.
+     * <p>
+     * In ASCII mode the server may convert line endings, so the checksum of textual data
+     * containing line breaks is not verified.
+     *
+     * @param checksumAlgorithm Algorithm, or null to disable checksums.
+     */
+    public void setChecksumAlgorithm(ChecksumAlgorithm checksumAlgorithm) {
+        this.checksumAlgorithm = checksumAlgorithm;
+    }
+
+    /**
+     * @return Checksum of the data passed through the last file transfer, or null if checksums are disabled.
+     */
+    public ChecksumAlgorithm.Checksum getLastChecksum() {
+        return lastChecksum;
+    }
+
+    public FTPTransferScheduler getTransferScheduler() {
+        return transferScheduler;
+    }
+
+    /**
+     * @param transferScheduler Scheduler admitting the transfers of this client, by default the shared one.
+     */
+    public void setTransferScheduler(FTPTransferScheduler transferScheduler) {
+        this.transferScheduler = Objects.requireNonNull(transferScheduler);
+    }
+
+    public TransferPriority getTransferPriority() {
+        return transferPriority;
+    }
+
+    public void setTransferPriority(TransferPriority transferPriority) {
+        this.transferPriority = Objects.requireNonNull(transferPriority);
+    }
+
+    public long getTransferRateLimit() {
+        return transferRateLimit;
+    }
+
+    /**
+     * @param transferRateLimit Bandwidth of each transfer in bytes per second,
+     *                          0 means the limit of the priority class set in the scheduler.
+     */
+    public void setTransferRateLimit(long transferRateLimit) {
+        this.transferRateLimit = Math.max(transferRateLimit, 0);
+    }
+
+    public TransferListener getTransferListener() {
+        return transferListener;
+    }
+
+    /**
+     * @param transferListener Listener of the transfers of this client, or null.
+     */
+    public void setTransferListener(TransferListener transferListener) {
+        this.transferListener = transferListener;
+    }
+
+    public boolean isTLSEnabled() {
+        return tlsEnabled;
+    }
+
+    /**
+     * @param tlsEnabled Whether to secure the connection with AUTH TLS on connect, data connections
+     *                   are secured as well. Takes effect on the next connect.
+     */
+    public void setTLSEnabled(boolean tlsEnabled) {
+        this.tlsEnabled = tlsEnabled;
+    }
+
+    /**
+     * @return TLS context used by the client, or null if it has not been used yet.
+     */
+    public FTPSContext getTLSContext() {
+        return tlsContext;
+    }
+
+    /**
+     * @param tlsContext TLS context to use, or null to use the default one.
+     */
+    public void setTLSContext(FTPSContext tlsContext) {
+        this.tlsContext = tlsContext;
+    }
+
     public void connect(String host) throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException {
         connect(host, port);
     }
@@ -62,7 +182,7 @@ public class FTPClient {
 
         Socket connection = null;
         try {
-            connection = new Socket(host, port);
+            connection = openSocket(host, port);
             communication = new FTPCommunicationChannel(connection);
 
             // Returns welcome messages
@@ -72,6 +192,9 @@ public class FTPClient {
                     throw new FTPException(r);
             }
 
+            if (tlsEnabled)
+                connection = secureControlConnection(connection, host, port);
+
             this.connected = true;
             this.host = host;
             this.port = port;
@@ -117,131 +240,722 @@ public class FTPClient {
                 throw new FTPException(r);
         }
 
+        // Data connections are protected only if the control connection is
+        if (communication.getSSLSession() != null) {
+            for (String command : new String[]{"PBSZ 0", "PROT P"}) {
+                communication.sendFTPCommand(command);
+                r = communication.readFTPReply();
+                if (!r.isSuccessCode())
+                    throw new FTPException(r);
+            }
+            dataProtected = true;
+        }
+
         this.authenticated = true;
         this.username = username;
         this.password = password;
     }
 
+    /**
+     * Opens a new session to the same server with the same credentials.
+     *
+     * @throws IllegalStateException If the client has never logged in.
+     * @throws FTPException          If the server refuses the connection or login fails.
+     */
+    public FTPClient newSession() throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException {
+        return newSession(host, port);
+    }
+
+    /**
+     * Opens a new session to another server with the same credentials and settings.
+     *
+     * @throws IllegalStateException If the client has never logged in.
+     * @throws FTPException          If the server refuses the connection or login fails.
+     */
+    public FTPClient newSession(String host, int port) throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException {
+        if (username == null)
+            throw new IllegalStateException("Client has never logged in");
+
+        FTPClient session = new FTPClient();
+        session.activeMode = activeMode;
+        session.checksumAlgorithm = checksumAlgorithm;
+        session.transferScheduler = transferScheduler;
+        session.transferPriority = transferPriority;
+        session.transferRateLimit = transferRateLimit;
+        session.transferListener = transferListener;
+        session.tlsEnabled = tlsEnabled;
+        session.tlsContext = tlsContext;
+        session.connect(host, port);
+        try {
+            session.login(username, password);
+        } catch (IOException | FTPIllegalReplyException | FTPException e) {
+            session.disconnect();
+            throw e;
+        }
+        return session;
+    }
+
+    /**
+     * Closes the current connection if there is one, then connects and logs in again with the same credentials.
+     *
+     * @throws IllegalStateException If the client has never logged in.
+     * @throws FTPException          If the server refuses the connection or login fails.
+     */
+    public void reconnect() throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException {
+        if (username == null)
+            throw new IllegalStateException("Client has never logged in");
+
+        if (connected)
+            disconnect();
+        connect(host, port);
+        login(username, password);
+    }
+
+    /**
+     * Checks that the connection is alive.
+     *
+     * @throws IllegalStateException If the client is not connected or not authenticated.
+     * @throws FTPException          If the server replies with an error.
+     */
+    public void noop() throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException {
+        executeCommand("NOOP");
+    }
+
     /**
      * @throws IllegalStateException    If the client is not connected or not authenticated.
      * @throws FTPException             If the operation fails.
      * @throws FTPDataTransferException If a I/O occurs in the data transfer connection.
      */
     public void downloadTextualData(String filePath, OutputStream outputStream) throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException, FTPDataTransferException {
-        if (!connected)
-            throw new IllegalStateException("Client not connected");
-        if (!authenticated)
-            throw new IllegalStateException("Client not authenticated");
-
-        communication.sendFTPCommand("TYPE A");
-        FTPReply r = communication.readFTPReply();
-        if (!r.isSuccessCode())
-            throw new FTPException(r);
-
-        FTPDataTransferChannel dtChannel = openDataTransferChannel();
-        communication.sendFTPCommand("RETR " + filePath);
-        r = communication.readFTPReply();
-        if (r.getCode() != 150 && r.getCode() != 125)
-            throw new FTPException(r);
+        ChecksumAlgorithm.Checksum checksum = newChecksum();
+        transferData("A", "RETR " + filePath, checksum, (input, output) -> {
+            try (InputStreamReader reader = new InputStreamReader(input, StandardCharsets.UTF_8)) {
+                Writer writer = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
+                char[] buffer = new char[DATA_TRANSFER_BUFFER_SIZE];
+                int bytesRead;
+                while ((bytesRead = reader.read(buffer)) != -1) {
+                    writer.write(buffer, 0, bytesRead);
+                    writer.flush();
+                }
+            }
+        }, () -> verifyChecksum(filePath, checksum, true));
+    }
 
-        try {
-            Socket dtConnection;
-            try {
-                dtConnection = dtChannel.openConnection();
-            } finally {
-                dtChannel.dispose();
+    /**
+     * Passes the data to the reader while it's being downloaded. If the reader stops before the end,
+     * the rest of the data is not transferred: the transfer is aborted with ABOR and the checksum is not verified.
+     *
+     * @return Whether the data has been read to the end.
+     * @throws IllegalStateException    If the client is not connected or not authenticated.
+     * @throws FTPException             If the operation fails.
+     * @throws FTPDataTransferException If a I/O occurs in the data transfer connection.
+     */
+    public boolean readTextualData(String filePath, TextDataReader reader) throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException, FTPDataTransferException {
+        ChecksumAlgorithm.Checksum checksum = newChecksum();
+        boolean[] complete = {true};
+        transferData("A", "RETR " + filePath, checksum, (input, output) -> {
+            try (InputStreamReader inputReader = new InputStreamReader(input, StandardCharsets.UTF_8)) {
+                if (!reader.read(inputReader)) {
+                    complete[0] = false;
+                    throw new TransferStoppedException();
+                }
             }
-            try (InputStreamReader reader = new InputStreamReader(dtConnection.getInputStream(), StandardCharsets.UTF_8)) {
-                Writer writer = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
+        }, () -> {
+            if (complete[0])
+                verifyChecksum(filePath, checksum, true);
+        });
+        return complete[0];
+    }
+
+    /**
+     * @throws IllegalStateException    If the client is not connected or not authenticated.
+     * @throws FTPException             If the operation fails.
+     * @throws FTPDataTransferException If a I/O occurs in the data transfer connection.
+     */
+    public void uploadTextualData(String filePath, InputStream inputStream) throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException, FTPDataTransferException {
+        ChecksumAlgorithm.Checksum checksum = newChecksum();
+        transferData("A", "STOR " + filePath, checksum, (input, output) -> {
+            try (OutputStreamWriter writer = new OutputStreamWriter(output, StandardCharsets.UTF_8)) {
+                Reader reader = new InputStreamReader(inputStream, StandardCharsets.UTF_8);
                 char[] buffer = new char[DATA_TRANSFER_BUFFER_SIZE];
                 int bytesRead;
                 while ((bytesRead = reader.read(buffer)) != -1) {
                     writer.write(buffer, 0, bytesRead);
                     writer.flush();
                 }
-            } catch (IOException e) {
-                throw new FTPDataTransferException("I/O error in data transfer", e);
-            } finally {
+            }
+        }, () -> verifyChecksum(filePath, checksum, true));
+    }
+
+    /**
+     * Uploads the data into a temporary file next to the target and then renames it over the target,
+     * so readers never see a partially written file.
+     * <p>
+     * If there's a condition, the check and the rename are done holding a lock directory next to the target,
+     * so writers using this method don't interleave. A lock left by a crashed writer is removed
+     * once it's older than {@code ftp.commit-lock-timeout} seconds.
+     * <p>
+     * Servers refusing to rename over an existing file are supported only with {@code ftp.rename-replace-fallback},
+     * then the target is moved aside before the rename and restored if the rename fails.
+     *
+     * @param condition Checked right before the rename, may be null. If it's not met or the lock is held
+     *                  by another writer, the temporary file is deleted and the target is left as is.
+     * @return Whether the target file has been replaced.
+     * @throws IllegalStateException    If the client is not connected or not authenticated.
+     * @throws FTPException             If the operation fails.
+     * @throws FTPDataTransferException If a I/O occurs in the data transfer connection.
+     */
+    public boolean uploadTextualDataAtomically(String filePath, InputStream inputStream, CommitCondition condition) throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException, FTPDataTransferException {
+        int nameStart = filePath.lastIndexOf('/') + 1;
+        String directoryPath = filePath.substring(0, nameStart);
+        String fileName = filePath.substring(nameStart);
+        String uniqueSuffix = "." + Long.toHexString(ThreadLocalRandom.current().nextLong());
+        String tempFilePath = directoryPath + "." + fileName + uniqueSuffix + ".tmp";
+        String lockPath = directoryPath + "." + fileName + ".lock";
+
+        boolean locked = false;
+        boolean published = false;
+        try {
+            uploadTextualData(tempFilePath, inputStream);
+            if (condition != null) {
+                locked = tryLock(directoryPath, lockPath);
+                if (!locked || !condition.test(this))
+                    return false;
+            }
+            try {
+                rename(tempFilePath, filePath);
+            } catch (FTPException e) {
+                // Some servers, e.g. on Windows, refuse to rename over an existing file
+                if (!RENAME_REPLACE_FALLBACK || e.getCode() != 550 && e.getCode() != 553)
+                    throw e;
+                replaceByRenaming(tempFilePath, filePath, directoryPath + "." + fileName + uniqueSuffix + ".bak");
+            }
+            published = true;
+            return true;
+        } finally {
+            // A lock that can't be removed expires, so it's not worth failing the upload for
+            if (locked) {
                 try {
-                    dtConnection.close();
-                } catch (Throwable ignored) {
+                    removeDirectory(lockPath);
+                } catch (IOException | FTPIllegalReplyException | FTPException ignored) {
                 }
             }
-        } finally {
-            // Consumes the result reply of the transfer
-            r = communication.readFTPReply();
-            if (r.getCode() != 226)
-                throw new FTPException(r);
+            if (!published) {
+                try {
+                    deleteFile(tempFilePath);
+                } catch (IOException | FTPIllegalReplyException | FTPException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the target with the file for servers which can't rename over an existing file.
+     * The target is missing between the two renames, but it's restored if the second rename fails.
+     */
+    private void replaceByRenaming(String fromPath, String toPath, String backupPath) throws IOException, FTPIllegalReplyException, FTPException {
+        // 550 is also the reply if the file itself is gone, then the target must be left as is
+        getModificationTime(fromPath);
+        rename(toPath, backupPath);
+        try {
+            rename(fromPath, toPath);
+        } catch (IOException | FTPIllegalReplyException | FTPException e) {
+            try {
+                rename(backupPath, toPath);
+            } catch (IOException | FTPIllegalReplyException | FTPException restoreFailure) {
+                e.addSuppressed(restoreFailure);
+            }
+            throw e;
+        }
+        try {
+            deleteFile(backupPath);
+        } catch (IOException | FTPIllegalReplyException | FTPException ignored) {
+        }
+    }
+
+    /**
+     * A lock is stale once its modification time on the server is older than the lock timeout by the local clock,
+     * so the clocks of the server and the client are assumed to differ much less than the timeout.
+     * A stale lock is broken by renaming it to a unique name, which succeeds only for one of the competing writers.
+     *
+     * @return Whether the lock directory has been created by this call.
+     */
+    private boolean tryLock(String directoryPath, String lockPath) throws IOException, FTPIllegalReplyException, FTPException, FTPDataTransferException {
+        try {
+            makeDirectory(lockPath);
+            return true;
+        } catch (FTPException e) {
+            if (e.getCode() != 550 && e.getCode() != 521)
+                throw e;
+        }
+
+        long staleTime = System.currentTimeMillis() - COMMIT_LOCK_TIMEOUT * 1000L;
+        if (!isModifiedBefore(directoryPath, lockPath, staleTime))
+            return false;
+        String brokenLockPath = lockPath + "." + Long.toHexString(ThreadLocalRandom.current().nextLong());
+        try {
+            rename(lockPath, brokenLockPath);
+        } catch (FTPException e) {
+            return false;
         }
+        // Another writer could have broken the lock and taken a new one after the check, then it's given back
+        if (!isModifiedBefore(directoryPath, brokenLockPath, staleTime)) {
+            try {
+                rename(brokenLockPath, lockPath);
+            } catch (FTPException ignored) {
+            }
+            return false;
+        }
+        try {
+            removeDirectory(brokenLockPath);
+        } catch (FTPException ignored) {
+        }
+        try {
+            makeDirectory(lockPath);
+            return true;
+        } catch (FTPException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Takes the modification time from MLSD, or from MDTM if the listing doesn't have it.
+     *
+     * @return Whether the entry exists and has been modified before the given time.
+     */
+    private boolean isModifiedBefore(String directoryPath, String path, long time) throws IOException, FTPIllegalReplyException, FTPException, FTPDataTransferException {
+        String name = path.substring(directoryPath.length());
+        long modificationTime = listFiles(directoryPath.isEmpty() ? "." : directoryPath).stream()
+                .filter(file -> file.getName().equals(name))
+                .mapToLong(FTPFile::getModificationTime)
+                .findAny().orElse(-1);
+        if (modificationTime < 0) {
+            try {
+                modificationTime = getModificationTime(path);
+            } catch (FTPException | FTPIllegalReplyException e) {
+                return false;
+            }
+        }
+        return modificationTime < time;
+    }
+
+    /**
+     * @throws IllegalStateException If the client is not connected or not authenticated.
+     * @throws FTPException          If the operation fails.
+     */
+    public void rename(String fromPath, String toPath) throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException {
+        checkAuthenticated();
+
+        communication.sendFTPCommand("RNFR " + fromPath);
+        FTPReply r = communication.readFTPReply();
+        if (r.getCode() != 350)
+            throw new FTPException(r);
+        executeCommand("RNTO " + toPath);
+    }
+
+    /**
+     * @throws IllegalStateException If the client is not connected or not authenticated.
+     * @throws FTPException          If the operation fails.
+     */
+    public void deleteFile(String filePath) throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException {
+        executeCommand("DELE " + filePath);
+    }
+
+    /**
+     * @throws IllegalStateException If the client is not connected or not authenticated.
+     * @throws FTPException          If the operation fails, e.g. the directory already exists.
+     */
+    public void makeDirectory(String directoryPath) throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException {
+        executeCommand("MKD " + directoryPath);
+    }
+
+    /**
+     * @throws IllegalStateException If the client is not connected or not authenticated.
+     * @throws FTPException          If the operation fails.
+     */
+    public void removeDirectory(String directoryPath) throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException {
+        executeCommand("RMD " + directoryPath);
     }
 
     /**
+     * Downloads the file as is, without any conversion of line endings and encoding.
+     *
      * @throws IllegalStateException    If the client is not connected or not authenticated.
      * @throws FTPException             If the operation fails.
      * @throws FTPDataTransferException If a I/O occurs in the data transfer connection.
      */
-    public void uploadTextualData(String filePath, InputStream inputStream) throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException, FTPDataTransferException {
+    public void downloadBinaryData(String filePath, OutputStream outputStream) throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException, FTPDataTransferException {
+        ChecksumAlgorithm.Checksum checksum = newChecksum();
+        transferData("I", "RETR " + filePath, checksum, (input, output) -> {
+            try (InputStream dtInput = input) {
+                byte[] buffer = new byte[DATA_TRANSFER_BUFFER_SIZE];
+                int bytesRead;
+                while ((bytesRead = dtInput.read(buffer)) != -1)
+                    outputStream.write(buffer, 0, bytesRead);
+                outputStream.flush();
+            }
+        }, () -> verifyChecksum(filePath, checksum, false));
+    }
+
+    /**
+     * Lists the directory using MLSD (RFC 3659). If the server doesn't support it,
+     * falls back to LIST, entries of which have no modification time.
+     *
+     * @throws IllegalStateException    If the client is not connected or not authenticated.
+     * @throws FTPException             If the operation fails.
+     * @throws FTPDataTransferException If a I/O occurs in the data transfer connection.
+     */
+    public List<FTPFile> listFiles(String directoryPath) throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException, FTPDataTransferException {
+        if (mlsdSupported) {
+            try {
+                return listFiles("MLSD " + directoryPath, FTPListParser::parseMLSDEntry);
+            } catch (FTPException e) {
+                if (e.getCode() != 500 && e.getCode() != 502)
+                    throw e;
+                mlsdSupported = false;
+            }
+        }
+        return listFiles("LIST " + directoryPath, FTPListParser::parseLISTEntry);
+    }
+
+    /**
+     * @return Size of the file in bytes.
+     * @throws IllegalStateException If the client is not connected or not authenticated.
+     * @throws FTPException          If the operation fails.
+     */
+    public long getSize(String filePath) throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException {
+        FTPReply r = executeCommand("SIZE " + filePath);
+        try {
+            return Long.parseLong(r.getMessage().trim());
+        } catch (NumberFormatException e) {
+            throw new FTPIllegalReplyException();
+        }
+    }
+
+    /**
+     * @return Modification time of the file in milliseconds since the epoch.
+     * @throws IllegalStateException If the client is not connected or not authenticated.
+     * @throws FTPException          If the operation fails.
+     */
+    public long getModificationTime(String filePath) throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException {
+        FTPReply r = executeCommand("MDTM " + filePath);
+        long time = FTPListParser.parseTime(r.getMessage().trim());
+        if (time < 0)
+            throw new FTPIllegalReplyException();
+        return time;
+    }
+
+    /**
+     * Requests the features supported by the server with FEAT (RFC 2389). The result is cached for the connection.
+     *
+     * @return Uppercase feature names mapped to their parameters (empty string if there are none).
+     * @throws IllegalStateException If the client is not connected.
+     */
+    public Map<String, String> getFeatures() throws IllegalStateException, IOException, FTPIllegalReplyException {
+        if (!connected)
+            throw new IllegalStateException("Client not connected");
+        if (features != null)
+            return features;
+
+        Map<String, String> result = new HashMap<>();
+        communication.sendFTPCommand("FEAT");
+        FTPReply r = communication.readFTPReply();
+        if (r.isSuccessCode()) {
+            String[] lines = r.getMessage().split("\n");
+            // The first and the last lines are not features
+            for (int i = 1; i < lines.length - 1; i++) {
+                String feature = lines[i].trim();
+                if (feature.isEmpty())
+                    continue;
+                int separator = feature.indexOf(' ');
+                if (separator == -1)
+                    result.put(feature.toUpperCase(), "");
+                else result.put(feature.substring(0, separator).toUpperCase(), feature.substring(separator + 1).trim());
+            }
+        }
+        features = Collections.unmodifiableMap(result);
+        return features;
+    }
+
+    /**
+     * Asks the server to compute the checksum of the file, using HASH if the server supports
+     * the algorithm, otherwise the legacy command of the algorithm (XCRC, XMD5, XSHA256).
+     *
+     * @return Checksum as a lowercase hex string, or null if the server doesn't support the algorithm.
+     * @throws IllegalStateException If the client is not connected or not authenticated.
+     * @throws FTPException          If the operation fails.
+     */
+    public String getRemoteChecksum(String filePath, ChecksumAlgorithm algorithm) throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException {
+        checkAuthenticated();
+
+        Map<String, String> features = getFeatures();
+        FTPReply r;
+        String hashAlgorithms = features.get("HASH");
+        if (hashAlgorithms != null && isHashAlgorithmSupported(hashAlgorithms, algorithm)) {
+            if (!algorithm.getHashName().equalsIgnoreCase(selectedHashAlgorithm)) {
+                executeCommand("OPTS HASH " + algorithm.getHashName());
+                selectedHashAlgorithm = algorithm.getHashName();
+            }
+            r = executeCommand("HASH " + filePath);
+        } else if (features.containsKey(algorithm.getLegacyCommand())) {
+            r = executeCommand(algorithm.getLegacyCommand() + " " + filePath);
+        } else {
+            return null;
+        }
+
+        Matcher m = Pattern.compile("(?<![0-9A-Fa-f])[0-9A-Fa-f]{" + algorithm.getHexLength() + "}(?![0-9A-Fa-f])").matcher(r.getMessage());
+        if (!m.find())
+            throw new FTPIllegalReplyException();
+        return m.group().toLowerCase();
+    }
+
+    /**
+     * Recursively downloads the remote directory, see {@link FTPMirror}.
+     */
+    public FTPMirror.Result mirror(String remoteDirectoryPath, File localDirectory) throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException, FTPDataTransferException {
+        return new FTPMirror(this).mirror(remoteDirectoryPath, localDirectory);
+    }
+
+    public void disconnect() throws IllegalStateException {
+        if (!connected)
+            throw new IllegalStateException("Client not connected");
+
+        // Try sending QUIT, if it fails - whatever
+        try {
+            communication.sendFTPCommand("QUIT");
+        } catch (IOException ignored) {
+        }
+
+        communication.close();
+        communication = null;
+        features = null;
+        selectedHashAlgorithm = null;
+        dataProtected = false;
+        connected = false;
+        authenticated = false;
+    }
+
+    /**
+     * Upgrades the control connection to TLS with AUTH TLS (RFC 4217).
+     */
+    private Socket secureControlConnection(Socket connection, String host, int port) throws IOException, FTPIllegalReplyException, FTPException {
+        communication.sendFTPCommand("AUTH TLS");
+        FTPReply r = communication.readFTPReply();
+        if (r.getCode() != 234)
+            throw new FTPException(r);
+
+        if (tlsContext == null)
+            tlsContext = FTPSContext.getDefault();
+        SSLSocket securedConnection = tlsContext.secureControlConnection(connection, host, port);
+        communication = new FTPCommunicationChannel(securedConnection);
+        return securedConnection;
+    }
+
+    private void checkAuthenticated() throws IllegalStateException {
         if (!connected)
             throw new IllegalStateException("Client not connected");
         if (!authenticated)
             throw new IllegalStateException("Client not authenticated");
+    }
+
+    private FTPReply executeCommand(String command) throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException {
+        checkAuthenticated();
 
-        communication.sendFTPCommand("TYPE A");
+        communication.sendFTPCommand(command);
         FTPReply r = communication.readFTPReply();
         if (!r.isSuccessCode())
             throw new FTPException(r);
+        return r;
+    }
+
+    private ChecksumAlgorithm.Checksum newChecksum() {
+        lastChecksum = checksumAlgorithm != null ? checksumAlgorithm.newChecksum() : null;
+        return lastChecksum;
+    }
+
+    /**
+     * @param textual Whether the data has been transferred in ASCII mode.
+     */
+    private void verifyChecksum(String filePath, ChecksumAlgorithm.Checksum checksum, boolean textual) throws IOException, FTPIllegalReplyException, FTPException, FTPChecksumException {
+        if (checksum == null || textual && checksum.containsLineBreaks())
+            return;
+        String remoteChecksum = getRemoteChecksum(filePath, checksum.getAlgorithm());
+        if (remoteChecksum != null && !remoteChecksum.equals(checksum.getValue()))
+            throw new FTPChecksumException(filePath, checksum.getValue(), remoteChecksum);
+    }
+
+    /**
+     * @param hashAlgorithms Parameters of the HASH feature, e.g. "SHA-1;SHA-256*;MD5", where * marks the selected one.
+     */
+    private boolean isHashAlgorithmSupported(String hashAlgorithms, ChecksumAlgorithm algorithm) {
+        boolean supported = false;
+        for (String name : hashAlgorithms.split(";")) {
+            boolean selected = name.endsWith("*");
+            if (selected)
+                name = name.substring(0, name.length() - 1);
+            if (selected && selectedHashAlgorithm == null)
+                selectedHashAlgorithm = name;
+            if (name.equalsIgnoreCase(algorithm.getHashName()))
+                supported = true;
+        }
+        return supported;
+    }
+
+    private List<FTPFile> listFiles(String command, Function<String, FTPFile> entryParser) throws IOException, FTPIllegalReplyException, FTPException, FTPDataTransferException {
+        List<FTPFile> files = new ArrayList<>();
+        transferData("A", command, null, (input, output) -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    FTPFile file = entryParser.apply(line);
+                    if (file != null)
+                        files.add(file);
+                }
+            }
+        });
+        return files;
+    }
+
+    /**
+     * Waits for the admission of the scheduler, then sets the representation type,
+     * opens a data connection for the command and passes its streams to the handler.
+     *
+     * @param observer Observer of the transferred data, may be null.
+     */
+    private void transferData(String type, String command, DataTransferObserver observer, DataConnectionHandler handler) throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException, FTPDataTransferException {
+        transferData(type, command, observer, handler, null);
+    }
+
+    /**
+     * @param verification Check of the transferred data, e.g. of its checksum, run before the listener is notified
+     *                     of the end of the transfer, so that a failed check is reported as the failure of the transfer.
+     *                     May be null.
+     */
+    private void transferData(String type, String command, DataTransferObserver observer, DataConnectionHandler handler, TransferVerification verification) throws IllegalStateException, IOException, FTPIllegalReplyException, FTPException, FTPDataTransferException {
+        checkAuthenticated();
+
+        TransferHandle transfer = null;
+        if (transferListener != null) {
+            transfer = new TransferHandle(command, transferListener);
+            transferListener.transferStarted(transfer);
+        }
+        Exception failure = null;
+        try {
+            FTPTransferScheduler.Permit permit;
+            try {
+                permit = transferScheduler.acquire(host + ":" + port, transferPriority, transferRateLimit, transfer);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the transfer to be scheduled");
+            }
+            try {
+                if (transfer != null && transfer.isCancelled())
+                    throw new FTPTransferCancelledException("Transfer cancelled before it started: " + command);
+                executeDataTransfer(type, command, transfer, permit.andThen(observer), handler);
+            } finally {
+                permit.release();
+            }
+            if (verification != null)
+                verification.verify();
+        } catch (IOException | FTPIllegalReplyException | FTPException | FTPDataTransferException | RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            if (transfer != null)
+                transferListener.transferFinished(transfer, transfer.getProgress(), failure);
+        }
+    }
+
+    private void executeDataTransfer(String type, String command, TransferHandle transfer, DataTransferObserver observer, DataConnectionHandler handler) throws IOException, FTPIllegalReplyException, FTPException, FTPDataTransferException {
+        executeCommand("TYPE " + type);
 
         FTPDataTransferChannel dtChannel = openDataTransferChannel();
-        communication.sendFTPCommand("STOR " + filePath);
-        r = communication.readFTPReply();
-        if (r.getCode() != 150 && r.getCode() != 125)
+        FTPReply r;
+        try {
+            if (transfer != null) {
+                // Cancellation stops waiting for the data connection as well
+                transfer.attach(dtChannel::cancel);
+                if (transfer.isCancelled())
+                    throw new FTPTransferCancelledException("Transfer cancelled before it started: " + command);
+            }
+            communication.sendFTPCommand(command);
+            r = communication.readFTPReply();
+        } catch (IOException | FTPIllegalReplyException | FTPTransferCancelledException e) {
+            dtChannel.dispose();
+            throw e;
+        }
+        if (r.getCode() != 150 && r.getCode() != 125) {
+            dtChannel.dispose();
             throw new FTPException(r);
+        }
 
+        boolean aborted = false;
         try {
             Socket dtConnection;
             try {
                 dtConnection = dtChannel.openConnection();
+            } catch (IOException | FTPDataTransferException e) {
+                if (transfer != null && transfer.isCancelled()) {
+                    aborted = true;
+                    throw new FTPTransferCancelledException("Transfer cancelled: " + command);
+                }
+                throw e;
             } finally {
                 dtChannel.dispose();
+                if (transfer != null)
+                    transfer.detach();
             }
-            try (OutputStreamWriter writer = new OutputStreamWriter(dtConnection.getOutputStream(), StandardCharsets.UTF_8)) {
-                Reader reader = new InputStreamReader(inputStream, StandardCharsets.UTF_8);
-                char[] buffer = new char[DATA_TRANSFER_BUFFER_SIZE];
-                int bytesRead;
-                while ((bytesRead = reader.read(buffer)) != -1) {
-                    writer.write(buffer, 0, bytesRead);
-                    writer.flush();
+            dtConnection.setSoTimeout(SOCKET_TIMEOUT_MILLIS);
+            if (transfer != null) {
+                Matcher m = TRANSFER_SIZE_PATTERN.matcher(r.getMessage());
+                if (m.find())
+                    transfer.setTotalBytes(Long.parseLong(m.group(1)));
+                observer = transfer.observer().andThen(observer);
+                transfer.attach(dtConnection);
+            }
+            Closeable dtCloseable = dtConnection;
+            try {
+                InputStream input;
+                OutputStream output;
+                if (dataProtected) {
+                    TLSDataConnection tlsConnection = tlsContext.secureDataConnection(dtConnection, communication.getSSLSession());
+                    dtCloseable = tlsConnection;
+                    input = tlsConnection.getInputStream();
+                    output = tlsConnection.getOutputStream();
+                } else {
+                    input = dtConnection.getInputStream();
+                    output = dtConnection.getOutputStream();
                 }
+                handler.handle(observer.observe(input), observer.observe(output));
+            } catch (TransferStoppedException e) {
+                aborted = true;
             } catch (IOException e) {
+                if (transfer != null && transfer.isCancelled()) {
+                    aborted = true;
+                    throw new FTPTransferCancelledException("Transfer cancelled: " + command);
+                }
                 throw new FTPDataTransferException("I/O error in data transfer", e);
             } finally {
+                if (transfer != null)
+                    transfer.detach();
                 try {
-                    dtConnection.close();
+                    dtCloseable.close();
                 } catch (Throwable ignored) {
                 }
             }
         } finally {
-            // Consumes the result reply of the transfer.
-            r = communication.readFTPReply();
-            if (r.getCode() != 226)
-                throw new FTPException(r);
-        }
-    }
-
-    public void disconnect() throws IllegalStateException {
-        if (!connected)
-            throw new IllegalStateException("Client not connected");
-
-        // Try sending QUIT, if it fails - whatever
-        try {
-            communication.sendFTPCommand("QUIT");
-        } catch (IOException ignored) {
+            if (aborted) {
+                // Consumes the result reply of the transfer, which is 426 if it was still in progress, and the reply to ABOR
+                communication.sendFTPCommand("ABOR");
+                communication.readFTPReply();
+                communication.readFTPReply();
+            } else {
+                // Consumes the result reply of the transfer
+                r = communication.readFTPReply();
+                if (r.getCode() != 226)
+                    throw new FTPException(r);
+            }
         }
-
-        communication.close();
-        communication = null;
-        connected = false;
-        authenticated = false;
     }
 
     private FTPDataTransferChannel openDataTransferChannel() throws IOException, FTPIllegalReplyException, FTPException {
@@ -255,16 +969,14 @@ public class FTPClient {
     }
 
     private FTPDataTransferChannel openActiveDataTransferChannel() throws IOException, FTPIllegalReplyException, FTPException {
-        FTPActiveDataTransferChannel channel = new FTPActiveDataTransferChannel();
-        int port = channel.getLocalPort();
-        int[] addr = {127, 0, 0, 1}; // TODO add property for client ip in active mode
-
+        FTPActiveDataTransferChannel channel = new FTPActiveDataTransferChannel(FTPActiveListenerPool.getDefault(), communication.getRemoteAddress(), SOCKET_TIMEOUT_MILLIS);
         try {
-            communication.sendFTPCommand("PORT " + addr[0] + "," + addr[1] + "," + addr[2] + "," + addr[3] + "," + (port >>> 8) + "," + (port & 255));
+            InetAddress address = ACTIVE_MODE_ADDRESS.isEmpty() ? communication.getLocalAddress() : InetAddress.getByName(ACTIVE_MODE_ADDRESS);
+            communication.sendFTPCommand(buildActiveModeCommand(address, channel.getLocalPort()));
             FTPReply r = communication.readFTPReply();
             if (!r.isSuccessCode())
                 throw new FTPException(r);
-        } catch (IOException | FTPIllegalReplyException e) {
+        } catch (IOException | FTPIllegalReplyException | FTPException e) {
             channel.dispose();
             throw e;
         }
@@ -272,6 +984,22 @@ public class FTPClient {
         return channel;
     }
 
+    /**
+     * PORT supports only IPv4 addresses, so EPRT (RFC 2428) is used for IPv6 or when forced by the configuration.
+     */
+    private static String buildActiveModeCommand(InetAddress address, int port) {
+        if (address instanceof Inet6Address || ACTIVE_MODE_EXTENDED) {
+            String host = address.getHostAddress();
+            int scopeIndex = host.indexOf('%');
+            if (scopeIndex != -1)
+                host = host.substring(0, scopeIndex);
+            return "EPRT |" + (address instanceof Inet6Address ? 2 : 1) + "|" + host + "|" + port + "|";
+        }
+
+        byte[] addr = address.getAddress();
+        return "PORT " + (addr[0] & 255) + "," + (addr[1] & 255) + "," + (addr[2] & 255) + "," + (addr[3] & 255) + "," + (port >>> 8) + "," + (port & 255);
+    }
+
     private FTPDataTransferChannel openPassiveDataTransferChannel() throws IOException, FTPIllegalReplyException, FTPException {
         communication.sendFTPCommand("PASV");
         FTPReply r = communication.readFTPReply();
@@ -289,12 +1017,47 @@ public class FTPClient {
         String pasvHost = parts[0] + "." + parts[1] + "." + parts[2] + "." + parts[3];
         int pasvPort = Integer.parseInt(parts[4]) << 8 | Integer.parseInt(parts[5]);
 
-        return () -> {
-            try {
-                return new Socket(pasvHost, pasvPort);
-            } catch (IOException e) {
-                throw new FTPDataTransferException("Cannot connect to the remote server");
-            }
-        };
+        return new FTPPassiveDataTransferChannel(pasvHost, pasvPort, SOCKET_TIMEOUT_MILLIS);
+    }
+
+    private static Socket openSocket(String host, int port) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), SOCKET_TIMEOUT_MILLIS);
+            socket.setSoTimeout(SOCKET_TIMEOUT_MILLIS);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    @FunctionalInterface
+    public interface CommitCondition {
+        boolean test(FTPClient session) throws IOException, FTPIllegalReplyException, FTPException, FTPDataTransferException;
+    }
+
+    @FunctionalInterface
+    public interface TextDataReader {
+        /**
+         * @return Whether the data has been read to the end, otherwise the transfer is aborted.
+         */
+        boolean read(Reader reader) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface DataConnectionHandler {
+        void handle(InputStream input, OutputStream output) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface TransferVerification {
+        void verify() throws IOException, FTPIllegalReplyException, FTPException, FTPDataTransferException;
+    }
+
+    /**
+     * Thrown by a handler to abort the transfer without failing it.
+     */
+    private static class TransferStoppedException extends IOException {
     }
 }
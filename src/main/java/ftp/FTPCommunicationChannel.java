@@ -2,7 +2,10 @@ package ftp;
 
 import ftp.exceptions.FTPIllegalReplyException;
 
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
 import java.io.*;
+import java.net.InetAddress;
 import java.net.Socket;
 
 public class FTPCommunicationChannel {
@@ -23,9 +26,40 @@ public class FTPCommunicationChannel {
         if (line.length() < 3)
             throw new FTPIllegalReplyException();
 
-        int code = Integer.parseInt(line.substring(0, 3));
-        String message = line.substring(4);
-        return new FTPReply(code, message);
+        int code;
+        try {
+            code = Integer.parseInt(line.substring(0, 3));
+        } catch (NumberFormatException e) {
+            throw new FTPIllegalReplyException();
+        }
+        StringBuilder message = new StringBuilder(line.length() > 4 ? line.substring(4) : "");
+
+        // Multiline reply lasts until the line starting with the same code followed by a space
+        if (line.length() > 3 && line.charAt(3) == '-') {
+            String lastLinePrefix = line.substring(0, 3) + " ";
+            do {
+                line = reader.readLine();
+                if (line == null)
+                    throw new IOException("FTP connection closed");
+                message.append('\n').append(line.startsWith(lastLinePrefix) ? line.substring(4) : line);
+            } while (!line.startsWith(lastLinePrefix));
+        }
+        return new FTPReply(code, message.toString());
+    }
+
+    public InetAddress getLocalAddress() {
+        return connection.getLocalAddress();
+    }
+
+    public InetAddress getRemoteAddress() {
+        return connection.getInetAddress();
+    }
+
+    /**
+     * @return TLS session of the connection, or null if the connection is not secured.
+     */
+    public SSLSession getSSLSession() {
+        return connection instanceof SSLSocket ? ((SSLSocket) connection).getSession() : null;
     }
 
     public void sendFTPCommand(String command) throws IOException {
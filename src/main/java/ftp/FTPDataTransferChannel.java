@@ -8,5 +8,11 @@ import java.net.Socket;
 public interface FTPDataTransferChannel {
     Socket openConnection() throws IOException, FTPDataTransferException;
 
+    /**
+     * Makes a pending {@link #openConnection()} fail, may be called from any thread.
+     * Has no effect once the channel is disposed.
+     */
+    void cancel();
+
     default void dispose() {}
 }
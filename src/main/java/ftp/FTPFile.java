@@ -0,0 +1,52 @@
+package ftp;
+
+public class FTPFile {
+    public enum Type {
+        FILE, DIRECTORY, OTHER
+    }
+
+    private final String name;
+    private final Type type;
+    private final long size;
+    private final long modificationTime;
+
+    /**
+     * @param size             Size in bytes, or -1 if unknown.
+     * @param modificationTime Modification time in milliseconds since the epoch, or -1 if unknown.
+     */
+    public FTPFile(String name, Type type, long size, long modificationTime) {
+        this.name = name;
+        this.type = type;
+        this.size = size;
+        this.modificationTime = modificationTime;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public boolean isFile() {
+        return type == Type.FILE;
+    }
+
+    public boolean isDirectory() {
+        return type == Type.DIRECTORY;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getModificationTime() {
+        return modificationTime;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + type.name().toLowerCase() + ", size=" + size + ")";
+    }
+}
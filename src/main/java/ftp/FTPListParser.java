@@ -0,0 +1,113 @@
+package ftp;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parses entries of directory listings into {@link FTPFile}s.
+ */
+class FTPListParser {
+    // Unix style: "-rw-r--r--   1 owner group   1234 Jan 01 12:00 name"
+    private static final Pattern LIST_ENTRY_PATTERN = Pattern.compile(
+            "^([-dlbcps])\\S{9}\\S?\\s+\\d+\\s+\\S+\\s+\\S+\\s+(\\d+)\\s+\\S+\\s+\\d{1,2}\\s+(?:\\d{1,2}:\\d{2}|\\d{4})\\s(.+)$");
+
+    private FTPListParser() {
+    }
+
+    /**
+     * @return Parsed entry, or null for the current and parent directory entries.
+     */
+    static FTPFile parseMLSDEntry(String line) {
+        int separator = line.indexOf(' ');
+        if (separator == -1)
+            return null;
+
+        String name = line.substring(separator + 1);
+        FTPFile.Type type = FTPFile.Type.OTHER;
+        long size = -1, modificationTime = -1;
+        for (String fact : line.substring(0, separator).split(";")) {
+            int eq = fact.indexOf('=');
+            if (eq == -1)
+                continue;
+            String factName = fact.substring(0, eq).toLowerCase();
+            String value = fact.substring(eq + 1);
+            switch (factName) {
+                case "type":
+                    String t = value.toLowerCase();
+                    if (t.equals("cdir") || t.equals("pdir"))
+                        return null;
+                    if (t.equals("file"))
+                        type = FTPFile.Type.FILE;
+                    else if (t.equals("dir"))
+                        type = FTPFile.Type.DIRECTORY;
+                    break;
+                case "size":
+                    try {
+                        size = Long.parseLong(value);
+                    } catch (NumberFormatException ignored) {
+                    }
+                    break;
+                case "modify":
+                    modificationTime = parseTime(value);
+                    break;
+            }
+        }
+        return new FTPFile(name, type, size, modificationTime);
+    }
+
+    /**
+     * Supports only Unix style listings. The modification time is not parsed, since it's given
+     * in the server local time zone and up to minutes at best.
+     *
+     * @return Parsed entry, or null if the line is not an entry.
+     */
+    static FTPFile parseLISTEntry(String line) {
+        Matcher m = LIST_ENTRY_PATTERN.matcher(line);
+        if (!m.matches())
+            return null;
+
+        String name = m.group(3);
+        if (name.equals(".") || name.equals(".."))
+            return null;
+
+        FTPFile.Type type;
+        switch (m.group(1).charAt(0)) {
+            case '-':
+                type = FTPFile.Type.FILE;
+                break;
+            case 'd':
+                type = FTPFile.Type.DIRECTORY;
+                break;
+            default:
+                type = FTPFile.Type.OTHER;
+        }
+        return new FTPFile(name, type, Long.parseLong(m.group(2)), -1);
+    }
+
+    /**
+     * Parses time value of MDTM and MLSD in format YYYYMMDDHHMMSS[.sss], which is always in UTC.
+     *
+     * @return Time in milliseconds since the epoch, or -1 if the value is malformed.
+     */
+    static long parseTime(String value) {
+        if (value.length() < 14)
+            return -1;
+
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        format.setLenient(false);
+        try {
+            long time = format.parse(value.substring(0, 14)).getTime();
+            if (value.length() > 15 && value.charAt(14) == '.') {
+                String fraction = (value.substring(15) + "00").substring(0, 3);
+                time += Integer.parseInt(fraction);
+            }
+            return time;
+        } catch (ParseException | NumberFormatException e) {
+            return -1;
+        }
+    }
+}
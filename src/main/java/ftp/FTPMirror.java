@@ -0,0 +1,244 @@
+package ftp;
+
+import config.Configuration;
+import ftp.exceptions.FTPDataTransferException;
+import ftp.exceptions.FTPException;
+import ftp.exceptions.FTPIllegalReplyException;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recursively downloads a remote directory into a local one.
+ * <p>
+ * The tree is walked by a work-stealing pool, each worker borrows one of up to {@code concurrency} pooled sessions
+ * for a single listing or file download. Files whose local copy has the same size and modification time
+ * are skipped, so repeated runs transfer only the changes. The sessions are opened with the settings of the client
+ * and {@link TransferPriority#BULK} priority, the client itself is not used and not changed.
+ */
+public class FTPMirror {
+    private static final int DEFAULT_CONCURRENCY = Configuration.getIntProperty("ftp.mirror-concurrency", 4);
+    private static final String PARTIAL_FILE_SUFFIX = ".part";
+
+    private final FTPClient client;
+    private final int concurrency;
+
+    public FTPMirror(FTPClient client) {
+        this(client, DEFAULT_CONCURRENCY);
+    }
+
+    /**
+     * @param client      Client that has logged in, its sessions are opened on demand.
+     * @param concurrency Maximum number of sessions working in parallel.
+     */
+    public FTPMirror(FTPClient client, int concurrency) {
+        if (concurrency < 1)
+            throw new IllegalArgumentException("Concurrency must be positive");
+        this.client = client;
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * @throws FTPException             If any listing or download fails.
+     * @throws FTPDataTransferException If a I/O occurs in a data transfer connection.
+     */
+    public Result mirror(String remoteDirectoryPath, File localDirectory) throws IOException, FTPIllegalReplyException, FTPException, FTPDataTransferException {
+        // Sessions opened by the pool inherit the priority of the first one
+        FTPClient firstSession = client.newSession();
+        firstSession.setTransferPriority(TransferPriority.BULK);
+
+        FTPSessionPool sessions = new FTPSessionPool(firstSession, concurrency);
+        Result result = new Result();
+        ForkJoinPool pool = new ForkJoinPool(concurrency);
+        try {
+            pool.invoke(new DirectoryTask(sessions, result, remoteDirectoryPath, localDirectory));
+        } catch (RuntimeException e) {
+            // ForkJoinPool may wrap the failure when rethrowing it in the caller thread
+            for (Throwable t = e; t != null; t = t.getCause()) {
+                if (t instanceof IOException)
+                    throw (IOException) t;
+                if (t instanceof FTPIllegalReplyException)
+                    throw (FTPIllegalReplyException) t;
+                if (t instanceof FTPException)
+                    throw (FTPException) t;
+                if (t instanceof FTPDataTransferException)
+                    throw (FTPDataTransferException) t;
+            }
+            throw e;
+        } finally {
+            pool.shutdownNow();
+            sessions.close();
+            try {
+                firstSession.disconnect();
+            } catch (IllegalStateException ignored) {
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Names come from the server, so a name which could point outside the directory is rejected.
+     */
+    private static File resolveLocalFile(File directory, String name) {
+        File file = new File(directory, name);
+        try {
+            if (name.isEmpty() || name.contains("/") || name.contains("\\") || name.indexOf('\0') != -1
+                    || !file.getCanonicalFile().getParentFile().equals(directory.getCanonicalFile()))
+                throw new CompletionException(new IOException("Unsafe file name from server: " + name));
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+        return file;
+    }
+
+    private static String resolveRemotePath(String directoryPath, String name) {
+        return directoryPath.endsWith("/") ? directoryPath + name : directoryPath + "/" + name;
+    }
+
+    public static class Result {
+        private final AtomicInteger downloadedFiles = new AtomicInteger();
+        private final AtomicInteger skippedFiles = new AtomicInteger();
+        private final AtomicLong downloadedBytes = new AtomicLong();
+
+        public int getDownloadedFiles() {
+            return downloadedFiles.get();
+        }
+
+        public int getSkippedFiles() {
+            return skippedFiles.get();
+        }
+
+        public long getDownloadedBytes() {
+            return downloadedBytes.get();
+        }
+
+        @Override
+        public String toString() {
+            return "downloaded " + getDownloadedFiles() + " files (" + getDownloadedBytes() + " bytes), skipped " + getSkippedFiles() + " unchanged";
+        }
+    }
+
+    /**
+     * Runs the operation in a pooled session, rethrowing checked exceptions wrapped into {@link CompletionException}.
+     */
+    private static void execute(FTPSessionPool sessions, FTPSessionPool.SessionOperation<?> operation) {
+        try {
+            sessions.execute(operation);
+        } catch (IOException | FTPIllegalReplyException | FTPException | FTPDataTransferException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private static class DirectoryTask extends RecursiveAction {
+        private final FTPSessionPool sessions;
+        private final Result result;
+        private final String remotePath;
+        private final File localDirectory;
+
+        DirectoryTask(FTPSessionPool sessions, Result result, String remotePath, File localDirectory) {
+            this.sessions = sessions;
+            this.result = result;
+            this.remotePath = remotePath;
+            this.localDirectory = localDirectory;
+        }
+
+        @Override
+        protected void compute() {
+            if (!localDirectory.isDirectory() && !localDirectory.mkdirs())
+                throw new CompletionException(new IOException("Cannot create local directory " + localDirectory));
+
+            List<FTPFile> files = new ArrayList<>();
+            execute(sessions, session -> files.addAll(session.listFiles(remotePath)));
+
+            List<RecursiveAction> subtasks = new ArrayList<>();
+            for (FTPFile file : files) {
+                if (file.getName().equals(".") || file.getName().equals(".."))
+                    continue;
+                String path = resolveRemotePath(remotePath, file.getName());
+                File localFile = resolveLocalFile(localDirectory, file.getName());
+                if (file.isDirectory())
+                    subtasks.add(new DirectoryTask(sessions, result, path, localFile));
+                else if (file.isFile())
+                    subtasks.add(new FileTask(sessions, result, path, file, localFile));
+            }
+            invokeAll(subtasks);
+        }
+    }
+
+    private static class FileTask extends RecursiveAction {
+        private final FTPSessionPool sessions;
+        private final Result result;
+        private final String remotePath;
+        private final FTPFile remoteFile;
+        private final File localFile;
+
+        FileTask(FTPSessionPool sessions, Result result, String remotePath, FTPFile remoteFile, File localFile) {
+            this.sessions = sessions;
+            this.result = result;
+            this.remotePath = remotePath;
+            this.remoteFile = remoteFile;
+            this.localFile = localFile;
+        }
+
+        @Override
+        protected void compute() {
+            execute(sessions, session -> {
+                long modificationTime = remoteFile.getModificationTime();
+                if (modificationTime < 0 && localFile.isFile() && localFile.length() == remoteFile.getSize())
+                    modificationTime = queryModificationTime(session);
+                if (isUnchanged(modificationTime)) {
+                    result.skippedFiles.incrementAndGet();
+                    return null;
+                }
+
+                // Downloads into a partial file first, so an interrupted run never leaves a truncated copy
+                File partialFile = new File(localFile.getPath() + PARTIAL_FILE_SUFFIX);
+                boolean moved = false;
+                try {
+                    try (OutputStream output = new BufferedOutputStream(new FileOutputStream(partialFile))) {
+                        session.downloadBinaryData(remotePath, output);
+                    }
+                    Files.move(partialFile.toPath(), localFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    moved = true;
+                } finally {
+                    if (!moved)
+                        Files.deleteIfExists(partialFile.toPath());
+                }
+                if (modificationTime < 0)
+                    modificationTime = queryModificationTime(session);
+                if (modificationTime >= 0)
+                    localFile.setLastModified(modificationTime);
+
+                result.downloadedFiles.incrementAndGet();
+                result.downloadedBytes.addAndGet(localFile.length());
+                return null;
+            });
+        }
+
+        /**
+         * @return Modification time, or -1 if the server doesn't provide it.
+         */
+        private long queryModificationTime(FTPClient session) throws IOException, FTPIllegalReplyException {
+            try {
+                return session.getModificationTime(remotePath);
+            } catch (FTPException e) {
+                return -1;
+            }
+        }
+
+        private boolean isUnchanged(long modificationTime) {
+            // Local file systems may not keep milliseconds, so times are compared up to seconds
+            return modificationTime >= 0 && localFile.isFile()
+                    && localFile.length() == remoteFile.getSize()
+                    && localFile.lastModified() / 1000 == modificationTime / 1000;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package ftp;
+
+import ftp.exceptions.FTPDataTransferException;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+public class FTPPassiveDataTransferChannel implements FTPDataTransferChannel {
+    private final Socket socket = new Socket();
+    private final String host;
+    private final int port;
+    private final int timeoutMillis;
+    private boolean disposed;
+
+    /**
+     * @param timeoutMillis Timeout of connecting and of every read, 0 means no timeout.
+     */
+    public FTPPassiveDataTransferChannel(String host, int port, int timeoutMillis) {
+        this.host = host;
+        this.port = port;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public Socket openConnection() throws FTPDataTransferException {
+        try {
+            socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            return socket;
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            throw new FTPDataTransferException("Cannot connect to the remote server");
+        }
+    }
+
+    @Override
+    public synchronized void cancel() {
+        if (disposed)
+            return;
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public synchronized void dispose() {
+        disposed = true;
+    }
+}
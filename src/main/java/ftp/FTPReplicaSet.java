@@ -0,0 +1,394 @@
+package ftp;
+
+import config.Configuration;
+import ftp.exceptions.FTPDataTransferException;
+import ftp.exceptions.FTPException;
+import ftp.exceptions.FTPIllegalReplyException;
+
+import java.io.*;
+import java.net.SocketTimeoutException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Predicate;
+
+/**
+ * Keeps the same files on several FTP servers.
+ * <p>
+ * Uploads go to all servers in parallel and succeed once the write quorum of servers has stored the file.
+ * Downloads either race all servers and take the first complete result, or go to the server with the lowest
+ * observed latency, falling back to the next ones on failure. Latency of each server is tracked as a moving
+ * average, which decays while the server is not used, so a server that was slow once is tried again later.
+ * <p>
+ * Parallel operations run on a bounded number of threads, at most twice the sessions of each server, and a server
+ * with that many operations in progress gets the next one only when one of them completes. Operations that are
+ * no longer needed are cancelled: reads right away, writes once the replica timeout has passed.
+ */
+public class FTPReplicaSet {
+    public enum ReadMode {
+        /** Download from all servers, the first complete result wins. */
+        RACE,
+        /** Download from the server with the lowest latency. */
+        FASTEST
+    }
+
+    private static final double LATENCY_SMOOTHING = 0.3;
+    private static final long LATENCY_HALF_LIFE_MILLIS = 60_000;
+    private static final long FAILURE_LATENCY_MILLIS = 10_000;
+    private static final long BUSY_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long TIMEOUT_MILLIS = Math.max(1, Configuration.getIntProperty("ftp.replica-timeout", 30)) * 1000L;
+
+    private final List<Replica> replicas = new ArrayList<>();
+    private final int writeQuorum;
+    private final ReadMode readMode;
+    private final ThreadPoolExecutor executor;
+    /** Cancels the operations which are still running when the timeout has passed. */
+    private final ScheduledExecutorService canceller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ftp-replica-canceller");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param writeQuorum Number of servers that must store a file for the upload to succeed.
+     */
+    public FTPReplicaSet(List<FTPSessionPool> servers, int writeQuorum, ReadMode readMode) {
+        if (servers.isEmpty())
+            throw new IllegalArgumentException("Replica set must have at least one server");
+        if (writeQuorum < 1 || writeQuorum > servers.size())
+            throw new IllegalArgumentException("Write quorum must be between 1 and " + servers.size());
+        int maxThreads = 0;
+        for (FTPSessionPool server : servers) {
+            Replica replica = new Replica(server);
+            replicas.add(replica);
+            maxThreads += replica.maxOperations;
+        }
+        this.writeQuorum = writeQuorum;
+        this.readMode = Objects.requireNonNull(readMode);
+        this.executor = new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "ftp-replica");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Single server set, which behaves exactly as the server itself.
+     */
+    public FTPReplicaSet(FTPSessionPool server) {
+        this(Collections.singletonList(server), 1, ReadMode.FASTEST);
+    }
+
+    /**
+     * Creates the set of the given servers using the quorum and read mode from the configuration.
+     * The default quorum is the majority of the servers.
+     */
+    public static FTPReplicaSet fromConfiguration(List<FTPSessionPool> servers) {
+        int quorum = Configuration.getIntProperty("ftp.replica-write-quorum", servers.size() / 2 + 1);
+        ReadMode readMode;
+        try {
+            readMode = ReadMode.valueOf(Configuration.getProperty("ftp.replica-read-mode", "fastest").trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            readMode = ReadMode.FASTEST;
+        }
+        return new FTPReplicaSet(servers, Math.max(1, Math.min(quorum, servers.size())), readMode);
+    }
+
+    /**
+     * @return Additional servers from the configuration property in format "host[:port],host[:port]".
+     */
+    public static List<Map.Entry<String, Integer>> getConfiguredReplicaAddresses() {
+        List<Map.Entry<String, Integer>> addresses = new ArrayList<>();
+        for (String address : Configuration.getProperty("ftp.replica-hosts", "").split(",")) {
+            address = address.trim();
+            if (address.isEmpty())
+                continue;
+            int separator = address.lastIndexOf(':');
+            try {
+                if (separator != -1 && address.indexOf(':') == separator)
+                    addresses.add(new AbstractMap.SimpleImmutableEntry<>(address.substring(0, separator), Integer.parseInt(address.substring(separator + 1))));
+                else addresses.add(new AbstractMap.SimpleImmutableEntry<>(address, 21));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return addresses;
+    }
+
+    public int size() {
+        return replicas.size();
+    }
+
+    public int getWriteQuorum() {
+        return writeQuorum;
+    }
+
+    /**
+     * @return Number of servers to read from to see the result of every write that has reached the write quorum.
+     */
+    public int getReadQuorum() {
+        return replicas.size() - writeQuorum + 1;
+    }
+
+    public ReadMode getReadMode() {
+        return readMode;
+    }
+
+    /**
+     * @see FTPClient#downloadTextualData(String, OutputStream)
+     */
+    public void downloadTextualData(String filePath, OutputStream outputStream) throws IOException, FTPIllegalReplyException, FTPException, FTPDataTransferException {
+        if (replicas.size() == 1) {
+            replicas.get(0).execute(session -> {
+                session.downloadTextualData(filePath, outputStream);
+                return null;
+            });
+            return;
+        }
+
+        byte[] data = readMode == ReadMode.RACE ? raceDownload(filePath) : fastestDownload(filePath);
+        outputStream.write(data);
+        outputStream.flush();
+    }
+
+    /**
+     * Waits until the write quorum of servers has stored the data, the remaining uploads complete in background
+     * until the replica timeout.
+     *
+     * @throws FTPException If the quorum cannot be reached, the first failure is thrown with the others suppressed.
+     * @see FTPClient#uploadTextualData(String, InputStream)
+     */
+    public void uploadTextualData(String filePath, byte[] data) throws IOException, FTPIllegalReplyException, FTPException, FTPDataTransferException {
+        execute(writeQuorum, session -> {
+            session.uploadTextualData(filePath, new ByteArrayInputStream(data));
+            return null;
+        });
+    }
+
+    /**
+     * Runs the operation on all servers in parallel, waiting until the given number of them succeeds.
+     * The remaining operations continue in background until the replica timeout, then they are cancelled.
+     *
+     * @return Results of the succeeded servers.
+     * @throws SocketTimeoutException If the servers haven't succeeded within the replica timeout.
+     */
+    public <T> List<T> execute(int quorum, FTPSessionPool.SessionOperation<T> operation) throws IOException, FTPIllegalReplyException, FTPException, FTPDataTransferException {
+        return execute(quorum, operation, result -> true, false);
+    }
+
+    /**
+     * Same as {@link #execute(int, FTPSessionPool.SessionOperation)}, but only the results accepted by the predicate
+     * count towards the quorum.
+     *
+     * @return Results received until the quorum has been reached, or the results of all servers
+     * if it can't be reached because of the rejected ones.
+     */
+    public <T> List<T> execute(int quorum, FTPSessionPool.SessionOperation<T> operation, Predicate<? super T> accepted) throws IOException, FTPIllegalReplyException, FTPException, FTPDataTransferException {
+        return execute(quorum, operation, accepted, false);
+    }
+
+    /**
+     * Same as {@link #execute(int, FTPSessionPool.SessionOperation)}, but the remaining operations are cancelled
+     * as soon as the quorum is reached, for operations which only read the data.
+     */
+    public <T> List<T> query(int quorum, FTPSessionPool.SessionOperation<T> operation) throws IOException, FTPIllegalReplyException, FTPException, FTPDataTransferException {
+        return execute(quorum, operation, result -> true, true);
+    }
+
+    /**
+     * @param cancelRemaining Whether to cancel the remaining operations as soon as the quorum is reached.
+     */
+    private <T> List<T> execute(int quorum, FTPSessionPool.SessionOperation<T> operation, Predicate<? super T> accepted, boolean cancelRemaining) throws IOException, FTPIllegalReplyException, FTPException, FTPDataTransferException {
+        if (replicas.size() == 1)
+            return Collections.singletonList(replicas.get(0).execute(operation));
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        CompletionService<T> completion = new ExecutorCompletionService<>(executor);
+        List<Future<T>> futures = new ArrayList<>();
+        // Servers busy with earlier operations get this one once they have room for it
+        List<Replica> waiting = new ArrayList<>(replicas);
+        List<T> results = new ArrayList<>();
+        int acceptedResults = 0;
+        List<Throwable> failures = new ArrayList<>();
+        boolean finished = false;
+        try {
+            while (acceptedResults < quorum) {
+                for (Iterator<Replica> iterator = waiting.iterator(); iterator.hasNext(); ) {
+                    Replica replica = iterator.next();
+                    if (!replica.tryBegin())
+                        continue;
+                    iterator.remove();
+                    try {
+                        futures.add(completion.submit(() -> {
+                            try {
+                                return replica.execute(operation);
+                            } finally {
+                                replica.end();
+                            }
+                        }));
+                    } catch (RejectedExecutionException e) {
+                        replica.end();
+                        failures.add(new IOException("Too many operations in progress", e));
+                    }
+                }
+
+                if (replicas.size() - failures.size() - (results.size() - acceptedResults) < quorum) {
+                    if (!failures.isEmpty())
+                        throw failure(failures);
+                    // The caller gets the outcome of every server when the quorum isn't reached
+                    if (results.size() == replicas.size()) {
+                        finished = true;
+                        return results;
+                    }
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    failures.add(0, new SocketTimeoutException("Servers haven't responded in " + TIMEOUT_MILLIS / 1000 + " s"));
+                    throw failure(failures);
+                }
+                Future<T> future = completion.poll(waiting.isEmpty() ? remaining : Math.min(remaining, BUSY_POLL_NANOS), TimeUnit.NANOSECONDS);
+                if (future == null)
+                    continue;
+                try {
+                    T result = future.get();
+                    results.add(result);
+                    if (accepted.test(result))
+                        acceptedResults++;
+                } catch (ExecutionException e) {
+                    failures.add(e.getCause());
+                }
+            }
+            finished = true;
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the replicas");
+        } finally {
+            if (!finished || cancelRemaining)
+                cancel(futures);
+            else if (futures.stream().anyMatch(future -> !future.isDone()))
+                canceller.schedule(() -> cancel(futures), Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Runs the operation on the server with the lowest latency, falling back to the next ones if it fails.
+     * Unlike {@link #execute}, the operation never runs on several servers at once.
+     *
+     * @throws FTPException If all servers fail, the first failure is thrown with the others suppressed.
+     */
+    public <T> T executeOnFastest(FTPSessionPool.SessionOperation<T> operation) throws IOException, FTPIllegalReplyException, FTPException, FTPDataTransferException {
+        List<Replica> candidates = new ArrayList<>(replicas);
+        long now = System.currentTimeMillis();
+        candidates.sort(Comparator.comparingDouble(replica -> replica.getLatency(now)));
+
+        List<Throwable> failures = new ArrayList<>();
+        for (Replica replica : candidates) {
+            try {
+                return replica.execute(operation);
+            } catch (IOException | FTPIllegalReplyException | FTPException | FTPDataTransferException e) {
+                failures.add(e);
+            }
+        }
+        throw failure(failures);
+    }
+
+    public void close() {
+        canceller.shutdownNow();
+        executor.shutdownNow();
+        for (Replica replica : replicas)
+            replica.sessions.close();
+    }
+
+    private byte[] raceDownload(String filePath) throws IOException, FTPIllegalReplyException, FTPException, FTPDataTransferException {
+        return query(1, session -> {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            session.downloadTextualData(filePath, outputStream);
+            return outputStream.toByteArray();
+        }).get(0);
+    }
+
+    private byte[] fastestDownload(String filePath) throws IOException, FTPIllegalReplyException, FTPException, FTPDataTransferException {
+        return executeOnFastest(session -> {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            session.downloadTextualData(filePath, outputStream);
+            return outputStream.toByteArray();
+        });
+    }
+
+    /**
+     * Interrupts the running operations, which stops waiting for a session, while socket operations
+     * are bounded by the socket timeout of the client.
+     */
+    private static void cancel(List<? extends Future<?>> futures) {
+        for (Future<?> future : futures)
+            future.cancel(true);
+    }
+
+    /**
+     * Throws the first failure with the others suppressed, or returns it if it's an {@link IOException}.
+     */
+    private static IOException failure(List<Throwable> failures) throws FTPIllegalReplyException, FTPException, FTPDataTransferException {
+        Throwable first = failures.get(0);
+        for (int i = 1; i < failures.size(); i++)
+            first.addSuppressed(failures.get(i));
+
+        if (first instanceof FTPIllegalReplyException)
+            throw (FTPIllegalReplyException) first;
+        if (first instanceof FTPException)
+            throw (FTPException) first;
+        if (first instanceof FTPDataTransferException)
+            throw (FTPDataTransferException) first;
+        if (first instanceof RuntimeException)
+            throw (RuntimeException) first;
+        if (first instanceof IOException)
+            return (IOException) first;
+        return new IOException(first);
+    }
+
+    private static class Replica {
+        private final FTPSessionPool sessions;
+        /** Operations running or waiting for a session, beyond that the server is considered overloaded. */
+        private final int maxOperations;
+        private int operations;
+        private double latencyMillis;
+        private long measuredAt;
+
+        Replica(FTPSessionPool sessions) {
+            this.sessions = sessions;
+            this.maxOperations = 2 * sessions.getMaxSessions();
+        }
+
+        synchronized boolean tryBegin() {
+            if (operations >= maxOperations)
+                return false;
+            operations++;
+            return true;
+        }
+
+        synchronized void end() {
+            operations--;
+        }
+
+        <T> T execute(FTPSessionPool.SessionOperation<T> operation) throws IOException, FTPIllegalReplyException, FTPException, FTPDataTransferException {
+            long start = System.nanoTime();
+            boolean succeeded = false;
+            try {
+                T result = sessions.execute(operation);
+                succeeded = true;
+                return result;
+            } finally {
+                record(succeeded ? (System.nanoTime() - start) / 1e6 : FAILURE_LATENCY_MILLIS);
+            }
+        }
+
+        synchronized double getLatency(long now) {
+            if (measuredAt == 0)
+                return 0;
+            return latencyMillis * Math.pow(0.5, (double) (now - measuredAt) / LATENCY_HALF_LIFE_MILLIS);
+        }
+
+        private synchronized void record(double sampleMillis) {
+            latencyMillis = measuredAt == 0 ? sampleMillis : LATENCY_SMOOTHING * sampleMillis + (1 - LATENCY_SMOOTHING) * latencyMillis;
+            measuredAt = System.currentTimeMillis();
+        }
+    }
+}
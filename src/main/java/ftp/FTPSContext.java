@@ -0,0 +1,124 @@
+package ftp;
+
+import config.Configuration;
+
+import javax.net.ssl.*;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+
+/**
+ * TLS setup for explicit FTPS (RFC 4217), shared by all sessions.
+ * <p>
+ * Data connections are secured with the control connection's host and port as the peer identity, so the
+ * session cache of the shared {@link SSLContext} offers the control connection's TLS session for resumption
+ * (see {@link TLSDataConnection}).
+ * This saves a full handshake per transfer and satisfies servers requiring session reuse on data connections.
+ */
+public class FTPSContext {
+    private static FTPSContext defaultContext;
+
+    private final SSLContext sslContext;
+    private final boolean verifyHostname;
+    private final TLSHandshakeMetrics metrics = new TLSHandshakeMetrics();
+
+    public FTPSContext(SSLContext sslContext, boolean verifyHostname) {
+        this.sslContext = sslContext;
+        this.verifyHostname = verifyHostname;
+    }
+
+    /**
+     * @return Context created from the configuration on the first call.
+     * @throws IOException If the trust store cannot be loaded.
+     */
+    public static synchronized FTPSContext getDefault() throws IOException {
+        if (defaultContext == null)
+            defaultContext = fromConfiguration();
+        return defaultContext;
+    }
+
+    public SSLContext getSSLContext() {
+        return sslContext;
+    }
+
+    public TLSHandshakeMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Performs a TLS handshake over the control connection after AUTH TLS.
+     */
+    public SSLSocket secureControlConnection(Socket connection, String host, int port) throws IOException {
+        SSLSocket socket = (SSLSocket) sslContext.getSocketFactory().createSocket(connection, host, port, true);
+        socket.setUseClientMode(true);
+        if (verifyHostname) {
+            SSLParameters parameters = socket.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            socket.setSSLParameters(parameters);
+        }
+        long start = System.nanoTime();
+        socket.startHandshake();
+        metrics.record(System.nanoTime() - start, false);
+        return socket;
+    }
+
+    /**
+     * Performs a TLS handshake over the data connection, resuming the session of the control connection.
+     * The client side of the handshake is taken in both passive and active mode.
+     */
+    TLSDataConnection secureDataConnection(Socket connection, SSLSession controlSession) throws IOException {
+        SSLEngine engine = sslContext.createSSLEngine(controlSession.getPeerHost(), controlSession.getPeerPort());
+        engine.setUseClientMode(true);
+        if (verifyHostname) {
+            SSLParameters parameters = engine.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            engine.setSSLParameters(parameters);
+        }
+
+        TLSDataConnection dataConnection = new TLSDataConnection(connection, engine);
+        long start = System.nanoTime();
+        dataConnection.handshake();
+        metrics.record(System.nanoTime() - start, isResumed(dataConnection.getSession(), controlSession));
+        return dataConnection;
+    }
+
+    /**
+     * A resumed TLS 1.2 session keeps the id, while TLS 1.3 issues a new one, but the creation time is kept in both.
+     */
+    private static boolean isResumed(SSLSession session, SSLSession controlSession) {
+        return Arrays.equals(session.getId(), controlSession.getId()) || session.getCreationTime() == controlSession.getCreationTime();
+    }
+
+    private static FTPSContext fromConfiguration() throws IOException {
+        String trustStorePath = Configuration.getProperty("ftp.tls.trust-store", "");
+        String trustStorePassword = Configuration.getProperty("ftp.tls.trust-store-password", "");
+        String trustStoreType = Configuration.getProperty("ftp.tls.trust-store-type", KeyStore.getDefaultType());
+        try {
+            TrustManager[] trustManagers = null;
+            // Without a trust store the default trust store of the JRE is used
+            if (!trustStorePath.isEmpty()) {
+                KeyStore trustStore = KeyStore.getInstance(trustStoreType);
+                try (InputStream input = new FileInputStream(trustStorePath)) {
+                    trustStore.load(input, trustStorePassword.isEmpty() ? null : trustStorePassword.toCharArray());
+                }
+                TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                factory.init(trustStore);
+                trustManagers = factory.getTrustManagers();
+            }
+
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, trustManagers, null);
+            SSLSessionContext sessionCache = sslContext.getClientSessionContext();
+            sessionCache.setSessionCacheSize(Configuration.getIntProperty("ftp.tls.session-cache-size", 64));
+            sessionCache.setSessionTimeout(Configuration.getIntProperty("ftp.tls.session-timeout", 3600));
+
+            return new FTPSContext(sslContext, Configuration.getBooleanProperty("ftp.tls.verify-hostname", true));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot initialize TLS: " + e.getMessage(), e);
+        }
+    }
+}
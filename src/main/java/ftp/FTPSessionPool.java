@@ -0,0 +1,144 @@
+package ftp;
+
+import config.Configuration;
+import ftp.exceptions.FTPDataTransferException;
+import ftp.exceptions.FTPException;
+import ftp.exceptions.FTPIllegalReplyException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Shares a bounded number of sessions to one server between threads.
+ * <p>
+ * The given client is the first session, others are opened on demand with the same credentials.
+ * A session idle for longer than the validation interval is checked with NOOP before use, and a session
+ * whose control connection failed is reconnected, so callers don't have to care about server timeouts.
+ */
+public class FTPSessionPool {
+    private static final long VALIDATION_INTERVAL_MILLIS = Configuration.getIntProperty("ftp.session-validation-interval", 30) * 1000L;
+
+    private final FTPClient client;
+    private final int maxSessions;
+    private final BlockingQueue<PooledSession> idleSessions = new LinkedBlockingQueue<>();
+    private final List<FTPClient> openedSessions = new ArrayList<>();
+
+    /**
+     * @param client      Client that has logged in, used as the first session.
+     * @param maxSessions Maximum number of sessions used at the same time.
+     */
+    public FTPSessionPool(FTPClient client, int maxSessions) {
+        if (maxSessions < 1)
+            throw new IllegalArgumentException("Pool must have at least one session");
+        this.client = client;
+        this.maxSessions = maxSessions;
+        idleSessions.add(new PooledSession(client));
+    }
+
+    public FTPClient getClient() {
+        return client;
+    }
+
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    /**
+     * Runs the operation in an idle session, waiting for one if all sessions are busy.
+     *
+     * @throws FTPException If the session cannot be restored or the operation fails.
+     */
+    public <T> T execute(SessionOperation<T> operation) throws IOException, FTPIllegalReplyException, FTPException, FTPDataTransferException {
+        PooledSession session = borrow();
+        boolean broken = true;
+        try {
+            T result = operation.execute(session.client);
+            broken = false;
+            return result;
+        } catch (FTPException | FTPDataTransferException e) {
+            // the control connection is still in a consistent state
+            broken = false;
+            throw e;
+        } finally {
+            if (broken)
+                closeQuietly(session.client);
+            session.lastUsed = System.currentTimeMillis();
+            idleSessions.add(session);
+        }
+    }
+
+    /**
+     * Disconnects all sessions opened by the pool, the initial client is left as is.
+     */
+    public void close() {
+        synchronized (openedSessions) {
+            openedSessions.forEach(FTPSessionPool::closeQuietly);
+            openedSessions.clear();
+        }
+    }
+
+    private PooledSession borrow() throws IOException, FTPIllegalReplyException, FTPException {
+        PooledSession session = idleSessions.poll();
+        if (session == null) {
+            synchronized (openedSessions) {
+                if (openedSessions.size() + 1 < maxSessions) {
+                    FTPClient newSession = client.newSession();
+                    openedSessions.add(newSession);
+                    return new PooledSession(newSession);
+                }
+            }
+            try {
+                session = idleSessions.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for an FTP session");
+            }
+        }
+
+        try {
+            validate(session);
+        } catch (IOException | FTPIllegalReplyException | FTPException | RuntimeException e) {
+            idleSessions.add(session);
+            throw e;
+        }
+        return session;
+    }
+
+    private void validate(PooledSession session) throws IOException, FTPIllegalReplyException, FTPException {
+        if (session.client.isAuthenticated() && System.currentTimeMillis() - session.lastUsed > VALIDATION_INTERVAL_MILLIS) {
+            try {
+                session.client.noop();
+                return;
+            } catch (IOException | FTPIllegalReplyException | FTPException e) {
+                closeQuietly(session.client);
+            }
+        }
+        if (!session.client.isAuthenticated())
+            session.client.reconnect();
+    }
+
+    private static void closeQuietly(FTPClient session) {
+        try {
+            session.disconnect();
+        } catch (IllegalStateException ignored) {
+        }
+    }
+
+    @FunctionalInterface
+    public interface SessionOperation<T> {
+        T execute(FTPClient session) throws IOException, FTPIllegalReplyException, FTPException, FTPDataTransferException;
+    }
+
+    private static class PooledSession {
+        private final FTPClient client;
+        private long lastUsed = System.currentTimeMillis();
+
+        PooledSession(FTPClient client) {
+            this.client = client;
+        }
+    }
+}
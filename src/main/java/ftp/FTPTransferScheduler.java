@@ -0,0 +1,195 @@
+package ftp;
+
+import config.Configuration;
+import ftp.exceptions.FTPTransferCancelledException;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admits transfers of all sessions sharing the scheduler and limits their bandwidth.
+ * <p>
+ * The number of concurrent transfers per server is capped, waiting transfers are started in order of
+ * their {@link TransferPriority}, and bulk transfers leave one slot free for the others if the cap is greater than 1.
+ * With a single slot, bulk transfers take it too, otherwise they would never run.
+ * Each transfer passes through its own token bucket, chosen by its priority class, and the global one.
+ */
+public class FTPTransferScheduler {
+    private static final FTPTransferScheduler DEFAULT = new FTPTransferScheduler(
+            Configuration.getIntProperty("ftp.scheduler.max-transfers-per-server", 0),
+            getLongProperty("ftp.scheduler.global-rate-limit"),
+            getLongProperty("ftp.scheduler.rate-limit.interactive"),
+            getLongProperty("ftp.scheduler.rate-limit.normal"),
+            getLongProperty("ftp.scheduler.rate-limit.bulk"));
+
+    private final int maxTransfersPerServer;
+    private final TokenBucket globalBucket;
+    private final long[] transferRateLimits;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, ServerState> servers = new HashMap<>();
+    private long sequence;
+
+    /**
+     * @param maxTransfersPerServer Maximum number of concurrent transfers per server, 0 means unlimited.
+     * @param globalRateLimit       Total bandwidth of all transfers in bytes per second, 0 means unlimited.
+     * @param transferRateLimits    Bandwidth of a single transfer in bytes per second for each priority class
+     *                              in order of declaration, 0 means unlimited.
+     */
+    public FTPTransferScheduler(int maxTransfersPerServer, long globalRateLimit, long... transferRateLimits) {
+        this.maxTransfersPerServer = Math.max(maxTransfersPerServer, 0);
+        this.globalBucket = globalRateLimit > 0 ? new TokenBucket(globalRateLimit) : null;
+        this.transferRateLimits = new long[TransferPriority.values().length];
+        System.arraycopy(transferRateLimits, 0, this.transferRateLimits, 0, Math.min(transferRateLimits.length, this.transferRateLimits.length));
+    }
+
+    public static FTPTransferScheduler getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Waits until the transfer may start.
+     *
+     * @param server    Server identifier, e.g. host and port.
+     * @param rateLimit Bandwidth of the transfer in bytes per second, 0 means the limit of the priority class.
+     * @param transfer  Transfer whose cancellation stops the waiting, may be null.
+     * @throws FTPTransferCancelledException If the transfer is cancelled before it's admitted.
+     */
+    public Permit acquire(String server, TransferPriority priority, long rateLimit, TransferHandle transfer) throws InterruptedException, FTPTransferCancelledException {
+        if (rateLimit <= 0)
+            rateLimit = transferRateLimits[priority.ordinal()];
+        if (maxTransfersPerServer == 0)
+            return new Permit(null, rateLimit);
+
+        lock.lock();
+        try {
+            ServerState state = servers.computeIfAbsent(server, s -> new ServerState());
+            Waiter waiter = new Waiter(priority, sequence++, lock.newCondition());
+            state.waiting.add(waiter);
+            state.admitWaiting();
+            if (transfer != null)
+                transfer.attach(() -> {
+                    lock.lock();
+                    try {
+                        waiter.condition.signal();
+                    } finally {
+                        lock.unlock();
+                    }
+                });
+            try {
+                while (!waiter.admitted) {
+                    if (transfer != null && transfer.isCancelled()) {
+                        state.waiting.remove(waiter);
+                        throw new FTPTransferCancelledException("Transfer cancelled before it started: " + transfer.getCommand());
+                    }
+                    waiter.condition.await();
+                }
+            } catch (InterruptedException e) {
+                if (waiter.admitted)
+                    state.release();
+                else state.waiting.remove(waiter);
+                throw e;
+            } finally {
+                if (transfer != null)
+                    transfer.detach();
+            }
+            return new Permit(state, rateLimit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static long getLongProperty(String key) {
+        try {
+            return Long.parseLong(Configuration.getProperty(key, "0").trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Admission of a transfer, which also throttles the data passing through it.
+     * Must be released once the transfer is finished.
+     */
+    public class Permit implements DataTransferObserver {
+        private final ServerState server;
+        private final TokenBucket transferBucket;
+        private boolean released;
+
+        private Permit(ServerState server, long rateLimit) {
+            this.server = server;
+            this.transferBucket = rateLimit > 0 ? new TokenBucket(rateLimit) : null;
+        }
+
+        @Override
+        public void onData(byte[] buffer, int offset, int length) throws IOException {
+            if (transferBucket != null)
+                transferBucket.acquire(length);
+            if (globalBucket != null)
+                globalBucket.acquire(length);
+        }
+
+        public void release() {
+            if (server == null)
+                return;
+            lock.lock();
+            try {
+                if (!released) {
+                    released = true;
+                    server.release();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static class Waiter implements Comparable<Waiter> {
+        private final TransferPriority priority;
+        private final long sequence;
+        private final Condition condition;
+        private boolean admitted;
+
+        Waiter(TransferPriority priority, long sequence, Condition condition) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.condition = condition;
+        }
+
+        @Override
+        public int compareTo(Waiter o) {
+            int c = priority.compareTo(o.priority);
+            return c != 0 ? c : Long.compare(sequence, o.sequence);
+        }
+    }
+
+    /**
+     * Guarded by the scheduler lock.
+     */
+    private class ServerState {
+        private final PriorityQueue<Waiter> waiting = new PriorityQueue<>();
+        private int activeTransfers;
+
+        void admitWaiting() {
+            Waiter next;
+            while ((next = waiting.peek()) != null && activeTransfers < limitFor(next.priority)) {
+                waiting.poll();
+                next.admitted = true;
+                activeTransfers++;
+                next.condition.signal();
+            }
+        }
+
+        void release() {
+            activeTransfers--;
+            admitWaiting();
+        }
+
+        private int limitFor(TransferPriority priority) {
+            return priority == TransferPriority.BULK && maxTransfersPerServer > 1 ? maxTransfersPerServer - 1 : maxTransfersPerServer;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package ftp;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * Data connection secured by an {@link SSLEngine} over a blocking socket.
+ * <p>
+ * An engine is used instead of a layered SSLSocket, because the session cache is looked up by the peer port
+ * of the engine, which may be set to the control connection's port, while an SSLSocket always uses the port
+ * of the underlying socket. That's what allows resuming the control connection's session.
+ */
+class TLSDataConnection implements Closeable {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final Socket socket;
+    private final SSLEngine engine;
+    private final InputStream socketInput;
+    private final OutputStream socketOutput;
+    // Both buffers are kept in write mode: the data is between 0 and position
+    private ByteBuffer netInput;
+    private ByteBuffer appInput;
+    private ByteBuffer netOutput;
+    private boolean inputClosed;
+    private boolean closed;
+
+    TLSDataConnection(Socket socket, SSLEngine engine) throws IOException {
+        this.socket = socket;
+        this.engine = engine;
+        this.socketInput = socket.getInputStream();
+        this.socketOutput = socket.getOutputStream();
+        SSLSession session = engine.getSession();
+        netInput = ByteBuffer.allocate(session.getPacketBufferSize());
+        appInput = ByteBuffer.allocate(session.getApplicationBufferSize());
+        netOutput = ByteBuffer.allocate(session.getPacketBufferSize());
+    }
+
+    SSLSession getSession() {
+        return engine.getSession();
+    }
+
+    void handshake() throws IOException {
+        engine.beginHandshake();
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        while (status != SSLEngineResult.HandshakeStatus.FINISHED && status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+            switch (status) {
+                case NEED_TASK:
+                    runDelegatedTasks();
+                    status = engine.getHandshakeStatus();
+                    break;
+                case NEED_WRAP:
+                    status = wrap(EMPTY).getHandshakeStatus();
+                    break;
+                default:
+                    SSLEngineResult result = unwrap();
+                    if (result == null)
+                        throw new EOFException("Connection closed during TLS handshake");
+                    status = result.getHandshakeStatus();
+            }
+        }
+    }
+
+    InputStream getInputStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 255;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                return TLSDataConnection.this.read(buffer, offset, length);
+            }
+
+            @Override
+            public void close() throws IOException {
+                TLSDataConnection.this.close();
+            }
+        };
+    }
+
+    OutputStream getOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                TLSDataConnection.this.write(buffer, offset, length);
+            }
+
+            @Override
+            public void close() throws IOException {
+                TLSDataConnection.this.close();
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            // Sends close_notify, so the server knows the upload is complete and not truncated
+            engine.closeOutbound();
+            while (!engine.isOutboundDone())
+                wrap(EMPTY);
+        } finally {
+            socket.close();
+        }
+    }
+
+    private int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0)
+            return 0;
+        while (appInput.position() == 0) {
+            if (inputClosed)
+                return -1;
+            SSLEngineResult result = unwrap();
+            if (result == null || result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                inputClosed = true;
+                return -1;
+            }
+            handlePostHandshake(result.getHandshakeStatus());
+        }
+
+        appInput.flip();
+        int n = Math.min(length, appInput.remaining());
+        appInput.get(buffer, offset, n);
+        appInput.compact();
+        return n;
+    }
+
+    private void write(byte[] buffer, int offset, int length) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(buffer, offset, length);
+        while (data.hasRemaining()) {
+            SSLEngineResult result = wrap(data);
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+                throw new IOException("TLS connection closed");
+            handlePostHandshake(result.getHandshakeStatus());
+        }
+    }
+
+    /**
+     * TLS 1.3 servers send messages like session tickets after the handshake, which may need an answer.
+     */
+    private void handlePostHandshake(SSLEngineResult.HandshakeStatus status) throws IOException {
+        while (true) {
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+                status = engine.getHandshakeStatus();
+            } else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                status = wrap(EMPTY).getHandshakeStatus();
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Encrypts the data and sends the produced packet.
+     */
+    private SSLEngineResult wrap(ByteBuffer data) throws IOException {
+        while (true) {
+            netOutput.clear();
+            SSLEngineResult result = engine.wrap(data, netOutput);
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                netOutput = ByteBuffer.allocate(netOutput.capacity() * 2);
+                continue;
+            }
+            netOutput.flip();
+            socketOutput.write(netOutput.array(), 0, netOutput.limit());
+            socketOutput.flush();
+            return result;
+        }
+    }
+
+    /**
+     * Decrypts the next packet, reading from the socket as much as needed.
+     *
+     * @return Result of unwrapping, or null if the socket was closed.
+     */
+    private SSLEngineResult unwrap() throws IOException {
+        while (true) {
+            netInput.flip();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netInput, appInput);
+            } finally {
+                netInput.compact();
+            }
+
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    // Deliver the decrypted data first, or make room for the packet
+                    if (appInput.position() > 0)
+                        return result;
+                    appInput = ByteBuffer.allocate(appInput.capacity() * 2);
+                    break;
+                case BUFFER_UNDERFLOW:
+                    if (netInput.remaining() == 0) {
+                        ByteBuffer larger = ByteBuffer.allocate(netInput.capacity() * 2);
+                        netInput.flip();
+                        larger.put(netInput);
+                        netInput = larger;
+                    }
+                    int bytesRead = socketInput.read(netInput.array(), netInput.position(), netInput.remaining());
+                    if (bytesRead == -1) {
+                        closeInboundQuietly();
+                        return null;
+                    }
+                    netInput.position(netInput.position() + bytesRead);
+                    break;
+                default:
+                    return result;
+            }
+        }
+    }
+
+    private void closeInboundQuietly() {
+        try {
+            engine.closeInbound();
+        } catch (SSLException ignored) {
+            // many servers close data connections without close_notify, the FTP reply tells if the transfer is complete
+        }
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null)
+            task.run();
+    }
+}
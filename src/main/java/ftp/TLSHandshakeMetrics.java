@@ -0,0 +1,49 @@
+package ftp;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts TLS handshakes and their duration, separately for full and resumed ones.
+ */
+public class TLSHandshakeMetrics {
+    private final LongAdder fullHandshakes = new LongAdder();
+    private final LongAdder fullHandshakeNanos = new LongAdder();
+    private final LongAdder resumedHandshakes = new LongAdder();
+    private final LongAdder resumedHandshakeNanos = new LongAdder();
+
+    void record(long nanos, boolean resumed) {
+        if (resumed) {
+            resumedHandshakes.increment();
+            resumedHandshakeNanos.add(nanos);
+        } else {
+            fullHandshakes.increment();
+            fullHandshakeNanos.add(nanos);
+        }
+    }
+
+    public long getFullHandshakes() {
+        return fullHandshakes.sum();
+    }
+
+    public long getResumedHandshakes() {
+        return resumedHandshakes.sum();
+    }
+
+    public double getAverageFullHandshakeMillis() {
+        return average(fullHandshakeNanos.sum(), fullHandshakes.sum());
+    }
+
+    public double getAverageResumedHandshakeMillis() {
+        return average(resumedHandshakeNanos.sum(), resumedHandshakes.sum());
+    }
+
+    private static double average(long nanos, long count) {
+        return count == 0 ? 0 : nanos / 1e6 / count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("full handshakes: %d (avg %.2f ms), resumed: %d (avg %.2f ms)",
+                getFullHandshakes(), getAverageFullHandshakeMillis(), getResumedHandshakes(), getAverageResumedHandshakeMillis());
+    }
+}
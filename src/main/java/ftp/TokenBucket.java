@@ -0,0 +1,69 @@
+package ftp;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Limits the rate of data passing through it. Tokens are refilled continuously up to the capacity,
+ * a consumer may take more than available and then sleeps until the debt is paid off.
+ */
+public class TokenBucket implements DataTransferObserver {
+    private final long bytesPerSecond;
+    private final long capacity;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param bytesPerSecond Rate limit.
+     * @param capacity       Maximum amount of bytes that may pass without delay after an idle period.
+     */
+    public TokenBucket(long bytesPerSecond, long capacity) {
+        if (bytesPerSecond <= 0 || capacity <= 0)
+            throw new IllegalArgumentException("Rate and capacity must be positive");
+        this.bytesPerSecond = bytesPerSecond;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Creates a bucket allowing bursts of 100 ms worth of data.
+     */
+    public TokenBucket(long bytesPerSecond) {
+        this(bytesPerSecond, Math.max(bytesPerSecond / 10, 1));
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Takes the tokens, sleeping if there were not enough of them.
+     */
+    public void acquire(int bytes) throws InterruptedIOException {
+        long delayNanos = reserve(bytes);
+        if (delayNanos <= 0)
+            return;
+        try {
+            Thread.sleep(delayNanos / 1_000_000, (int) (delayNanos % 1_000_000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+        }
+    }
+
+    @Override
+    public void onData(byte[] buffer, int offset, int length) throws InterruptedIOException {
+        acquire(length);
+    }
+
+    /**
+     * @return Time in nanoseconds the caller has to wait before the tokens are paid off.
+     */
+    private synchronized long reserve(int bytes) {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * bytesPerSecond / 1e9);
+        lastRefill = now;
+        tokens -= bytes;
+        return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / bytesPerSecond);
+    }
+}
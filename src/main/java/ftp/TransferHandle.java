@@ -0,0 +1,128 @@
+package ftp;
+
+import config.Configuration;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Data transfer in progress, reported to a {@link TransferListener}. Can be watched and cancelled from any thread.
+ */
+public class TransferHandle {
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(
+            Math.max(Configuration.getIntProperty("ftp.transfer-progress-interval", 1000), 1));
+
+    private final String command;
+    private final TransferListener listener;
+    private final long startTime = System.nanoTime();
+    private long nextReportTime = startTime + PROGRESS_INTERVAL_NANOS;
+    private volatile long bytesTransferred;
+    private volatile long totalBytes = -1;
+    private volatile Sample lastSample = new Sample(startTime, 0, 0);
+    private volatile boolean cancelled;
+    private Closeable connection;
+
+    TransferHandle(String command, TransferListener listener) {
+        this.command = command;
+        this.listener = listener;
+    }
+
+    /**
+     * @return FTP command of the transfer, e.g. {@code RETR students.json}.
+     */
+    public String getCommand() {
+        return command;
+    }
+
+    public TransferProgress getProgress() {
+        long now = System.nanoTime();
+        long bytes = bytesTransferred;
+        Sample sample = lastSample;
+        // A too short window since the last report gives a noisy rate
+        double currentRate = now - sample.time < PROGRESS_INTERVAL_NANOS / 2 ? sample.rate
+                : (bytes - sample.bytes) * 1e9 / (now - sample.time);
+        return new TransferProgress(bytes, totalBytes, now - startTime, currentRate);
+    }
+
+    /**
+     * Stops the transfer, which may still be waiting for the scheduler or for the data connection:
+     * the waiting or the data connection is interrupted and the transfer is aborted with ABOR,
+     * after which the transferring thread fails with {@link ftp.exceptions.FTPTransferCancelledException}.
+     * Has no effect if the transfer has already completed. A cancelled upload may leave a partial file on the server.
+     */
+    public void cancel() {
+        cancelled = true;
+        Closeable connection;
+        synchronized (this) {
+            connection = this.connection;
+        }
+        closeQuietly(connection);
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    void setTotalBytes(long totalBytes) {
+        this.totalBytes = totalBytes;
+    }
+
+    /**
+     * Registers what the transfer is waiting for, e.g. the data connection, to be closed on cancellation.
+     * Closes it at once if already cancelled.
+     */
+    void attach(Closeable connection) {
+        synchronized (this) {
+            this.connection = connection;
+        }
+        if (cancelled)
+            closeQuietly(connection);
+    }
+
+    void detach() {
+        synchronized (this) {
+            connection = null;
+        }
+    }
+
+    /**
+     * @return Observer counting the data, must be notified only by the transferring thread.
+     */
+    DataTransferObserver observer() {
+        return (buffer, offset, length) -> {
+            if (cancelled)
+                throw new IOException("Transfer cancelled");
+            bytesTransferred += length;
+
+            long now = System.nanoTime();
+            if (now - nextReportTime >= 0) {
+                nextReportTime = now + PROGRESS_INTERVAL_NANOS;
+                TransferProgress progress = getProgress();
+                lastSample = new Sample(now, progress.getBytesTransferred(), progress.getCurrentRate());
+                listener.transferProgress(this, progress);
+            }
+        };
+    }
+
+    private static void closeQuietly(Closeable connection) {
+        if (connection == null)
+            return;
+        try {
+            connection.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static class Sample {
+        final long time;
+        final long bytes;
+        final double rate;
+
+        Sample(long time, long bytes, double rate) {
+            this.time = time;
+            this.bytes = bytes;
+            this.rate = rate;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package ftp;
+
+/**
+ * Receives the progress of data transfers of a client. Called in the transferring thread,
+ * so the methods must return quickly.
+ */
+public interface TransferListener {
+    /**
+     * Called before the transfer is scheduled, the handle may be kept to watch or cancel the transfer.
+     */
+    default void transferStarted(TransferHandle transfer) {
+    }
+
+    /**
+     * Called while the data is flowing, at most once per {@code ftp.transfer-progress-interval} milliseconds.
+     */
+    void transferProgress(TransferHandle transfer, TransferProgress progress);
+
+    /**
+     * @param failure Exception the transfer has failed with, including a checksum mismatch, or null if it has completed.
+     */
+    default void transferFinished(TransferHandle transfer, TransferProgress progress, Exception failure) {
+    }
+}
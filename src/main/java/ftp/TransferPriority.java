@@ -0,0 +1,12 @@
+package ftp;
+
+/**
+ * Priority class of transfers, waiting transfers of a higher class are started first.
+ */
+public enum TransferPriority {
+    /** Small latency-sensitive transfers, e.g. made on a user command. */
+    INTERACTIVE,
+    NORMAL,
+    /** Large background transfers, e.g. mirroring. They never occupy the last transfer slot of a server. */
+    BULK
+}
@@ -0,0 +1,63 @@
+package ftp;
+
+/**
+ * Immutable state of a transfer at some moment.
+ */
+public class TransferProgress {
+    private final long bytesTransferred;
+    private final long totalBytes;
+    private final long elapsedNanos;
+    private final double currentRate;
+
+    TransferProgress(long bytesTransferred, long totalBytes, long elapsedNanos, double currentRate) {
+        this.bytesTransferred = bytesTransferred;
+        this.totalBytes = totalBytes;
+        this.elapsedNanos = elapsedNanos;
+        this.currentRate = currentRate;
+    }
+
+    public long getBytesTransferred() {
+        return bytesTransferred;
+    }
+
+    /**
+     * @return Size of the transferred file, or -1 if the server hasn't reported it.
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedNanos / 1_000_000;
+    }
+
+    /**
+     * @return Rate in bytes per second over the last progress interval.
+     */
+    public double getCurrentRate() {
+        return currentRate;
+    }
+
+    /**
+     * @return Rate in bytes per second since the start of the transfer.
+     */
+    public double getAverageRate() {
+        return elapsedNanos > 0 ? bytesTransferred * 1e9 / elapsedNanos : 0;
+    }
+
+    /**
+     * @return Estimated time to complete the transfer at the average rate, or -1 if it can't be estimated.
+     */
+    public long getEstimatedRemainingMillis() {
+        double averageRate = getAverageRate();
+        if (totalBytes < 0 || averageRate <= 0)
+            return -1;
+        return (long) (Math.max(totalBytes - bytesTransferred, 0) * 1000 / averageRate);
+    }
+
+    @Override
+    public String toString() {
+        return bytesTransferred + (totalBytes >= 0 ? "/" + totalBytes : "") + " bytes, "
+                + Math.round(currentRate) + " B/s (average " + Math.round(getAverageRate()) + " B/s)";
+    }
+}
@@ -0,0 +1,29 @@
+package ftp.exceptions;
+
+/**
+ * Thrown when the checksum of the transferred data differs from the one computed by the server.
+ */
+public class FTPChecksumException extends FTPDataTransferException {
+    private final String filePath;
+    private final String localChecksum;
+    private final String remoteChecksum;
+
+    public FTPChecksumException(String filePath, String localChecksum, String remoteChecksum) {
+        super("Checksum mismatch for " + filePath + ": transferred " + localChecksum + ", server has " + remoteChecksum);
+        this.filePath = filePath;
+        this.localChecksum = localChecksum;
+        this.remoteChecksum = remoteChecksum;
+    }
+
+    public String getFilePath() {
+        return filePath;
+    }
+
+    public String getLocalChecksum() {
+        return localChecksum;
+    }
+
+    public String getRemoteChecksum() {
+        return remoteChecksum;
+    }
+}
@@ -0,0 +1,10 @@
+package ftp.exceptions;
+
+/**
+ * Thrown in the transferring thread when the transfer has been cancelled through its {@link ftp.TransferHandle}.
+ */
+public class FTPTransferCancelledException extends FTPDataTransferException {
+    public FTPTransferCancelledException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,12 @@
+package services;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a change cannot be published, because the data on the server keeps being changed by other clients.
+ */
+public class StudentDataConflictException extends IOException {
+    public StudentDataConflictException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,30 @@
+package services;
+
+import entities.Student;
+
+/**
+ * Formats students as JSON for the outputs of the client, e.g. the HTTP API and the script mode.
+ */
+public final class StudentJson {
+    private StudentJson() {
+    }
+
+    public static String toJson(Student student) {
+        return "{\"id\":" + student.getId() + ",\"name\":" + toJsonString(student.getName()) + "}";
+    }
+
+    /**
+     * @return JSON string literal of the text, with quotes, backslashes and control characters escaped.
+     */
+    public static String toJsonString(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else if (c < 0x20)
+                sb.append(String.format("\\u%04x", (int) c));
+            else sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+}
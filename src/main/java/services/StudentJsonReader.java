@@ -0,0 +1,108 @@
+package services;
+
+import entities.Student;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads students from the student data JSON one by one, as it arrives, without keeping the whole document.
+ */
+class StudentJsonReader implements StudentQuery.StudentSource {
+    private static final Pattern ID_ORDER_JSON_PATTERN = Pattern.compile("\"order\"\\s*:\\s*\"id\"");
+    private static final Pattern STUDENTS_KEY_JSON_PATTERN = Pattern.compile("\"students\"\\s*:\\s*$");
+
+    private final Reader reader;
+    private final StringBuilder text = new StringBuilder();
+    private String header;
+    private boolean idOrdered;
+    private boolean finished;
+
+    /**
+     * @param reader Buffered reader of the document.
+     */
+    StudentJsonReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * @return Whether the document declares that the students are ordered by id, known after the first {@link #next()}.
+     */
+    @Override
+    public boolean isIdOrdered() {
+        return idOrdered;
+    }
+
+    /**
+     * @return Whether the whole document has been read.
+     */
+    boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Reads only the part of the document before the student array, if it hasn't been read yet.
+     * Other arrays, e.g. the change ids, are part of the header.
+     *
+     * @return Header of the document, e.g. the version and the change ids.
+     */
+    String readHeader() throws IOException {
+        if (header == null) {
+            boolean inString = false;
+            int c;
+            while ((c = reader.read()) != -1) {
+                if (c == '"')
+                    inString = !inString;
+                else if (c == '[' && !inString && STUDENTS_KEY_JSON_PATTERN.matcher(text).find())
+                    break;
+                text.append((char) c);
+            }
+            finished = c == -1;
+            header = text.toString();
+            idOrdered = ID_ORDER_JSON_PATTERN.matcher(header).find();
+        }
+        return header;
+    }
+
+    @Override
+    public Student next() throws IOException {
+        readHeader();
+        while (!finished) {
+            int c = reader.read();
+            if (c == -1 || c == ']') {
+                finished = true;
+            } else if (c == '{') {
+                Student student = readStudent();
+                if (student != null)
+                    return student;
+            }
+        }
+        return null;
+    }
+
+    private Student readStudent() throws IOException {
+        text.setLength(0);
+        text.append('{');
+        // Names can't contain quotes, so there are no escape sequences to handle
+        boolean inString = false;
+        int depth = 1;
+        while (depth > 0) {
+            int c = reader.read();
+            if (c == -1)
+                throw new EOFException("Unexpected end of the student data");
+            text.append((char) c);
+            if (c == '"')
+                inString = !inString;
+            else if (c == '{' && !inString)
+                depth++;
+            else if (c == '}' && !inString)
+                depth--;
+        }
+
+        Matcher m = StudentService.STUDENT_INFO_JSON_PATTERN.matcher(text);
+        return m.find() ? new Student(Long.parseLong(m.group(1)), m.group(2)) : null;
+    }
+}
@@ -0,0 +1,134 @@
+package services;
+
+import entities.Student;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+/**
+ * Filter, order and page of students to select. By default, selects all students ordered by id.
+ */
+public class StudentQuery {
+    public enum Order {
+        ID,
+        /** By name, students with the same name are ordered by id. */
+        NAME
+    }
+
+    private long minId = 0;
+    private long maxId = Long.MAX_VALUE;
+    private String nameFilter;
+    private Order order = Order.ID;
+    private int offset;
+    private int limit = Integer.MAX_VALUE;
+
+    /**
+     * @param minId Minimum id, inclusive.
+     * @param maxId Maximum id, inclusive.
+     */
+    public StudentQuery idRange(long minId, long maxId) {
+        this.minId = minId;
+        this.maxId = maxId;
+        return this;
+    }
+
+    /**
+     * @param part Case-insensitive part of the name, or null to select any name.
+     */
+    public StudentQuery nameContains(String part) {
+        this.nameFilter = part == null || part.isEmpty() ? null : part.toLowerCase(Locale.ROOT);
+        return this;
+    }
+
+    public StudentQuery orderBy(Order order) {
+        this.order = order;
+        return this;
+    }
+
+    /**
+     * @param offset Number of the first matching students to skip.
+     * @param limit  Maximum number of students to select.
+     */
+    public StudentQuery page(int offset, int limit) {
+        if (offset < 0 || limit < 0)
+            throw new IllegalArgumentException("Offset and limit must not be negative");
+        this.offset = offset;
+        this.limit = limit;
+        return this;
+    }
+
+    public Order getOrder() {
+        return order;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public boolean matches(Student student) {
+        return student.getId() >= minId && student.getId() <= maxId
+                && (nameFilter == null || student.getName().toLowerCase(Locale.ROOT).contains(nameFilter));
+    }
+
+    public Comparator<Student> getComparator() {
+        Comparator<Student> byId = Comparator.comparingLong(Student::getId);
+        return order == Order.NAME ? Comparator.comparing(Student::getName).thenComparing(byId) : byId;
+    }
+
+    /**
+     * Selects the page keeping only the best offset + limit students seen so far, so the source is never
+     * materialized. If the source is ordered by id, stops reading it once no further student can get into the page.
+     */
+    List<Student> select(StudentSource source) throws IOException {
+        long capacity = (long) offset + limit;
+        if (capacity == 0)
+            return Collections.emptyList();
+
+        Comparator<Student> comparator = getComparator();
+        PriorityQueue<Student> best = new PriorityQueue<>(comparator.reversed());
+        Student student;
+        while ((student = source.next()) != null) {
+            boolean idOrdered = source.isIdOrdered();
+            if (idOrdered && student.getId() > maxId)
+                break;
+            if (!matches(student))
+                continue;
+            if (best.size() < capacity) {
+                best.add(student);
+            } else if (comparator.compare(student, best.peek()) < 0) {
+                best.poll();
+                best.add(student);
+            } else if (idOrdered && order == Order.ID) {
+                break;
+            }
+        }
+
+        List<Student> page = new ArrayList<>(best);
+        page.sort(comparator);
+        return offset >= page.size() ? Collections.emptyList() : new ArrayList<>(page.subList(offset, page.size()));
+    }
+
+    @FunctionalInterface
+    interface StudentSource {
+        /**
+         * @return Next student, or null if there are no more.
+         */
+        Student next() throws IOException;
+
+        /**
+         * @return Whether the students are returned in ascending order of id.
+         */
+        default boolean isIdOrdered() {
+            return false;
+        }
+    }
+}
@@ -3,26 +3,66 @@ package services;
 import config.Configuration;
 import entities.Student;
 import ftp.FTPClient;
+import ftp.FTPReplicaSet;
+import ftp.FTPSessionPool;
 import ftp.exceptions.FTPDataTransferException;
 import ftp.exceptions.FTPException;
 import ftp.exceptions.FTPIllegalReplyException;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
+/**
+ * Keeps a local copy of the student data and synchronizes it with the FTP server.
+ * <p>
+ * Thread-safe: readers get the current immutable {@link StudentSnapshot} without locking, while
+ * FTP operations and changes are serialized. A change is applied to a copy of the current data
+ * and published only after it has been uploaded, so readers never see a partial or failed change.
+ * <p>
+ * Changes from several clients are handled optimistically. The data file carries a version counter and the ids
+ * of the latest changes. A change is based on the newest data from the read quorum of servers, the changed
+ * data is uploaded into a temporary file and renamed over the data file only on servers still having the base data,
+ * which count towards the write quorum, or older data, which are just repaired. If the quorum isn't reached,
+ * the same changed data is published again while the base is still the newest, otherwise the servers that got it
+ * are rolled back and the change is re-applied to the newest data, unless its id is among the changes of the newest data.
+ */
 public class StudentService {
     private static final String STUDENT_DATA_FTP_FILEPATH = Configuration.getProperty("ftp.student-data-filepath", "students.json");
-    private static final Pattern STUDENT_INFO_JSON_PATTERN = Pattern.compile("\"id\"\\s*:\\s*(\\d+)\\s*,\\s*\"name\"\\s*:\\s*\"([^\"]+)\"");
-    private final FTPClient ftpClient;
-    private Map<Long, Student> students = new HashMap<>();
+    static final Pattern STUDENT_INFO_JSON_PATTERN = Pattern.compile("\"id\"\\s*:\\s*(\\d+)\\s*,\\s*\"name\"\\s*:\\s*\"([^\"]+)\"");
+    private static final Pattern VERSION_JSON_PATTERN = Pattern.compile("\"version\"\\s*:\\s*(\\d+)");
+    private static final Pattern COMMITS_JSON_PATTERN = Pattern.compile("\"commits\"\\s*:\\s*\\[([^\\]]*)]");
+    private static final Pattern COMMIT_ID_PATTERN = Pattern.compile("\"(\\w+)\"");
+    /** Number of the latest change ids kept in the data, which tell whether a change has been published. */
+    private static final int COMMIT_HISTORY_SIZE = 32;
+    private static final long COMMIT_BACKOFF_MILLIS = 25;
+    private static final int COMMIT_ATTEMPTS = Math.max(Configuration.getIntProperty("ftp.student-data-commit-attempts", 5), 1);
+    private final FTPReplicaSet replicas;
+    // Serializes FTP operations and writers
+    private final Object lock = new Object();
+    private volatile StudentSnapshot snapshot = StudentSnapshot.EMPTY;
 
     public StudentService(FTPClient ftpClient) {
-        this.ftpClient = ftpClient;
+        this(new FTPSessionPool(ftpClient, 1));
+    }
+
+    public StudentService(FTPSessionPool sessions) {
+        this(new FTPReplicaSet(sessions));
+    }
+
+    public StudentService(FTPReplicaSet replicas) {
+        this.replicas = replicas;
     }
 
     private static Map<Long, Student> parseJsonToStudentMap(String json) {
@@ -36,52 +76,339 @@ public class StudentService {
         return students;
     }
 
-    private static String serializeStudentMapToJson(Map<Long, Student> students) {
-        return students.values().stream()
+    /**
+     * Data without a version has version 0 and no change ids.
+     */
+    private static StoredData parseJsonToStoredData(String json) {
+        return parseJsonToStoredData(json, parseJsonToStudentMap(json));
+    }
+
+    private static StoredData parseJsonToStoredData(String json, Map<Long, Student> students) {
+        Matcher version = VERSION_JSON_PATTERN.matcher(json);
+        List<String> commits = new ArrayList<>();
+        Matcher m = COMMITS_JSON_PATTERN.matcher(json);
+        if (m.find()) {
+            Matcher commit = COMMIT_ID_PATTERN.matcher(m.group(1));
+            while (commit.find())
+                commits.add(commit.group(1));
+        }
+        return new StoredData(version.find() ? Long.parseLong(version.group(1)) : 0, commits, students);
+    }
+
+    /**
+     * Students are written in ascending order of id, which lets queries stop reading the data early.
+     */
+    private static String serializeStudentDataToJson(StoredData data) {
+        String json = data.students.values().stream()
+                .sorted(Comparator.comparingLong(Student::getId))
                 .map(student -> String.format("{\"id\":%d,\"name\":\"%s\"}", student.getId(), student.getName()))
-                .collect(Collectors.joining(",", "{\"students\":[", "]}"));
+                .collect(Collectors.joining(",", "{\"version\":" + data.version + ",\"commits\":" + data.commits.stream()
+                        .map(commit -> "\"" + commit + "\"")
+                        .collect(Collectors.joining(",", "[", "]")) + ",\"order\":\"id\",\"students\":[", "]}"));
+        assert isReadBack(json, data) : "Serialized student data is not read back the same: " + json;
+        return json;
     }
 
+    /**
+     * Round-trip check of the serialization against the parser and the streaming reader of queries.
+     */
+    private static boolean isReadBack(String json, StoredData data) {
+        if (!parseJsonToStoredData(json).isSameVersion(data) || !isSameData(parseJsonToStudentMap(json), data.students))
+            return false;
+        StudentJsonReader reader = new StudentJsonReader(new StringReader(json));
+        Map<Long, Student> students = new HashMap<>();
+        try {
+            for (Student student = reader.next(); student != null; student = reader.next())
+                students.put(student.getId(), student);
+        } catch (IOException e) {
+            return false;
+        }
+        return reader.isIdOrdered() && isSameData(students, data.students);
+    }
+
+    /**
+     * Replaces the local data with the data from the server unless it's older than the local data.
+     * The snapshot version is changed only if the data has actually changed.
+     */
     public void downloadStudentData() throws IOException, FTPIllegalReplyException, FTPDataTransferException, FTPException {
-        String json;
+        synchronized (lock) {
+            String json;
+            try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
+                replicas.downloadTextualData(STUDENT_DATA_FTP_FILEPATH, outputStream);
+                json = outputStream.toString("UTF8");
+            }
+            publishIfChanged(parseJsonToStoredData(json));
+        }
+    }
+
+    /**
+     * Reads the data from the read quorum of servers, which includes a server of every change that has reached
+     * the write quorum, and publishes the newest data.
+     */
+    private StoredData downloadLatestStudentData() throws IOException, FTPIllegalReplyException, FTPDataTransferException, FTPException {
+        List<StoredData> copies = replicas.query(replicas.getReadQuorum(), StudentService::downloadStoredData);
+        StoredData latest = newest(copies);
+        // Different data of the same version means a change has failed to reach the write quorum, the servers
+        // having the other data are then counted
+        if (copies.size() < replicas.size() && copies.stream().anyMatch(copy -> copy.version == latest.version && !copy.isSameVersion(latest))) {
+            try {
+                copies = replicas.query(replicas.size(), StudentService::downloadStoredData);
+            } catch (IOException | FTPIllegalReplyException | FTPDataTransferException | FTPException ignored) {
+            }
+        }
+        StoredData data = newest(copies);
+        publishIfChanged(data);
+        return data;
+    }
+
+    private static StoredData newest(List<StoredData> copies) {
+        Map<String, Long> counts = copies.stream().collect(Collectors.groupingBy(StoredData::getCommit, Collectors.counting()));
+        return copies.stream()
+                .max(Comparator.comparingLong((StoredData copy) -> copy.version)
+                        .thenComparingLong(copy -> counts.get(copy.getCommit()))
+                        .thenComparing(StoredData::getCommit))
+                .get();
+    }
+
+    /**
+     * Publishes the changed data on the servers having the base data, which count towards the write quorum,
+     * and on the servers having older data, which are repaired. Servers already having the changed data count
+     * as well, so a change published on some of the servers is completed by publishing it again.
+     *
+     * @return Outcome on each server, of every server if the quorum hasn't been reached.
+     */
+    private List<CommitResult> uploadStudentData(StoredData base, StoredData changed) throws FTPIllegalReplyException, FTPDataTransferException, IOException, FTPException {
+        byte[] studentDataJson = serializeStudentDataToJson(changed).getBytes(StandardCharsets.UTF_8);
+        return replicas.execute(replicas.getWriteQuorum(), session -> {
+            CommitResult[] result = {CommitResult.REJECTED};
+            session.uploadTextualDataAtomically(STUDENT_DATA_FTP_FILEPATH, new ByteArrayInputStream(studentDataJson), s -> {
+                StoredData stored = downloadStoredVersion(s);
+                if (stored.isSameVersion(changed))
+                    result[0] = CommitResult.COMMITTED;
+                else if (stored.isSameVersion(base))
+                    result[0] = CommitResult.COMMITTED;
+                else if (stored.version < base.version)
+                    result[0] = CommitResult.REPAIRED;
+                return result[0] != CommitResult.REJECTED && !stored.isSameVersion(changed);
+            });
+            return result[0];
+        }, result -> result == CommitResult.COMMITTED);
+    }
+
+    /**
+     * Puts the base data back on the servers having the changed data, which is not going to be published anymore.
+     * A server that can't be rolled back is left with the data, which is replaced by the next change.
+     */
+    private void rollBack(StoredData base, StoredData changed) {
+        byte[] studentDataJson = serializeStudentDataToJson(base).getBytes(StandardCharsets.UTF_8);
+        try {
+            replicas.execute(replicas.size(), session -> session.uploadTextualDataAtomically(STUDENT_DATA_FTP_FILEPATH,
+                    new ByteArrayInputStream(studentDataJson), s -> downloadStoredVersion(s).isSameVersion(changed)));
+        } catch (IOException | FTPIllegalReplyException | FTPDataTransferException | FTPException ignored) {
+        }
+    }
+
+    /**
+     * @return Data on the server, empty data of version 0 if there is no file yet.
+     */
+    private static StoredData downloadStoredData(FTPClient session) throws IOException, FTPIllegalReplyException, FTPDataTransferException, FTPException {
         try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
-            ftpClient.downloadTextualData(STUDENT_DATA_FTP_FILEPATH, outputStream);
-            json = outputStream.toString("UTF8");
+            session.downloadTextualData(STUDENT_DATA_FTP_FILEPATH, outputStream);
+            return parseJsonToStoredData(outputStream.toString("UTF8"));
+        } catch (FTPException e) {
+            if (e.getCode() == 550)
+                return new StoredData(0, Collections.emptyList(), new HashMap<>());
+            throw e;
         }
-        students = parseJsonToStudentMap(json);
     }
 
-    private void uploadStudentData(Runnable onFail) throws FTPIllegalReplyException, FTPDataTransferException, IOException, FTPException {
-        String studentDataJson = serializeStudentMapToJson(students);
-        try (InputStream inputStream = new ByteArrayInputStream(studentDataJson.getBytes(StandardCharsets.UTF_8))) {
-            ftpClient.uploadTextualData(STUDENT_DATA_FTP_FILEPATH, inputStream);
-        } catch (FTPIllegalReplyException | IOException | FTPException | FTPDataTransferException e) {
-            onFail.run();
+    /**
+     * Reads only the version and the change ids of the data on the server, the transfer is aborted before the students.
+     * Used while holding the commit lock, which should be short.
+     *
+     * @return Data without students, empty data of version 0 if there is no file yet.
+     */
+    private static StoredData downloadStoredVersion(FTPClient session) throws IOException, FTPIllegalReplyException, FTPDataTransferException, FTPException {
+        StoredData[] stored = {null};
+        try {
+            session.readTextualData(STUDENT_DATA_FTP_FILEPATH, reader -> {
+                StudentJsonReader students = new StudentJsonReader(new BufferedReader(reader));
+                stored[0] = parseJsonToStoredData(students.readHeader(), Collections.emptyMap());
+                return students.isFinished();
+            });
+        } catch (FTPException e) {
+            if (e.getCode() == 550)
+                return new StoredData(0, Collections.emptyList(), new HashMap<>());
             throw e;
         }
+        return stored[0];
     }
 
+    /**
+     * Selects the students from the data on the server while it's being downloaded, without keeping the whole data.
+     * The transfer is aborted once the rest of the data can't change the result, which is possible
+     * for queries ordered by id. The local data is not changed.
+     */
+    public List<Student> queryStudentData(StudentQuery query) throws IOException, FTPIllegalReplyException, FTPDataTransferException, FTPException {
+        return replicas.executeOnFastest(session -> {
+            List<Student> page = new ArrayList<>();
+            session.readTextualData(STUDENT_DATA_FTP_FILEPATH, reader -> {
+                StudentJsonReader students = new StudentJsonReader(new BufferedReader(reader));
+                page.addAll(query.select(students));
+                return students.isFinished();
+            });
+            return page;
+        });
+    }
+
+    /**
+     * Selects the students from the current snapshot of the local data.
+     */
+    public List<Student> queryLocalStudentData(StudentQuery query) {
+        Iterator<Student> students = snapshot.getStudents().values().iterator();
+        try {
+            return query.select(() -> students.hasNext() ? students.next() : null);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return Current snapshot of the local data, obtained without locking.
+     */
+    public StudentSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @return Unmodifiable map of students from the current snapshot.
+     */
     public Map<Long, Student> getLocalStudentData() {
-        return students;
+        return snapshot.getStudents();
     }
 
     public Student createStudent(String studentName) throws FTPIllegalReplyException, FTPDataTransferException, IOException, FTPException {
-        long studentId = generateStudentID();
-        Student student = new Student(studentId, studentName);
-        students.put(studentId, student);
+        return modify(addition(studentName));
+    }
 
-        uploadStudentData(() -> students.remove(studentId));
-        return student;
+    /**
+     * @return Whether the student has been found in the newest data and removed.
+     */
+    public boolean removeStudent(long studentId) throws FTPIllegalReplyException, FTPDataTransferException, IOException, FTPException {
+        return modify(students -> students.remove(studentId) != null);
     }
 
-    public void removeStudent(long studentId) throws FTPIllegalReplyException, FTPDataTransferException, IOException, FTPException {
-        Student student = students.get(studentId);
-        students.remove(studentId);
+    /**
+     * Applies the change to a copy of the newest data and publishes it on the servers.
+     * If the data on the servers has been changed meanwhile, applies the change again to the newest data.
+     * The change is not applied again once it may have been published.
+     *
+     * @param change Change of the given map, applied again to the newest data only if it can't have been published,
+     *               it should give the same result each time, e.g. a new student keeps the same id, see {@link #addition}.
+     * @return Result of the change applied to the published data.
+     * @throws StudentDataConflictException If the data keeps being changed by other clients.
+     */
+    public <T> T modify(Function<Map<Long, Student>, T> change) throws FTPIllegalReplyException, FTPDataTransferException, IOException, FTPException {
+        synchronized (lock) {
+            StoredData base = null;
+            StoredData changed = null;
+            T result = null;
+            boolean uploaded = false;
+            for (int attempt = 1; ; attempt++) {
+                StoredData latest = downloadLatestStudentData();
+                // Another client has based its change on this one
+                if (changed != null && !latest.isSameVersion(changed) && latest.commits.contains(changed.getCommit()))
+                    return result;
+                if (changed == null || !latest.isSameVersion(base) && !latest.isSameVersion(changed)) {
+                    if (uploaded)
+                        rollBack(base, changed);
+                    Map<Long, Student> students = new HashMap<>(latest.students);
+                    result = change.apply(students);
+                    base = latest;
+                    List<String> commits = new ArrayList<>();
+                    commits.add(Long.toHexString(ThreadLocalRandom.current().nextLong()));
+                    commits.addAll(latest.commits.subList(0, Math.min(latest.commits.size(), COMMIT_HISTORY_SIZE - 1)));
+                    changed = new StoredData(latest.version + 1, commits, students);
+                    uploaded = false;
+                }
 
-        uploadStudentData(() -> students.put(studentId, student));
+                List<CommitResult> results = uploadStudentData(base, changed);
+                if (results.stream().filter(r -> r == CommitResult.COMMITTED).count() >= replicas.getWriteQuorum()) {
+                    publish(changed.students, changed.version);
+                    return result;
+                }
+                uploaded |= results.stream().anyMatch(r -> r != CommitResult.REJECTED);
+                if (attempt == COMMIT_ATTEMPTS) {
+                    if (uploaded)
+                        rollBack(base, changed);
+                    throw new StudentDataConflictException("Student data is being changed by other clients, try again later");
+                }
+                backOff(attempt);
+            }
+        }
     }
 
-    private long generateStudentID() {
+    /**
+     * Waits a random time growing with the attempt, so that conflicting clients don't retry in lockstep.
+     */
+    private static void backOff(int attempt) throws InterruptedIOException {
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(COMMIT_BACKOFF_MILLIS << Math.min(attempt, 10)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry the change");
+        }
+    }
+
+    /**
+     * Must be called holding the lock. The snapshot version is changed only if the data has actually changed.
+     * Data older than the published one, e.g. read from a lagging server, is ignored.
+     */
+    private void publishIfChanged(StoredData data) {
+        if (data.version < snapshot.getDataVersion())
+            return;
+        if (data.version != snapshot.getDataVersion() || !isSameData(data.students, snapshot.getStudents()))
+            publish(data.students, data.version);
+    }
+
+    /**
+     * Must be called holding the lock.
+     */
+    private void publish(Map<Long, Student> students, long dataVersion) {
+        snapshot = new StudentSnapshot(snapshot.getVersion() + 1, dataVersion, students);
+    }
+
+    private static boolean isSameData(Map<Long, Student> a, Map<Long, Student> b) {
+        if (a.size() != b.size())
+            return false;
+        for (Student student : a.values()) {
+            Student other = b.get(student.getId());
+            // Student equality is defined by id only
+            if (other == null || !other.getName().equals(student.getName()))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return Change adding a student, which keeps the id chosen at the first application while it's free,
+     * so the new student doesn't get a different id each time the change is applied again.
+     */
+    public static Function<Map<Long, Student>, Student> addition(String studentName) {
+        long[] studentId = {-1};
+        return students -> {
+            if (studentId[0] < 0 || students.containsKey(studentId[0]))
+                studentId[0] = generateStudentID(students);
+            Student student = new Student(studentId[0], studentName);
+            students.put(studentId[0], student);
+            return student;
+        };
+    }
+
+    /**
+     * @return Id not taken by any of the given students, to be used in a {@link #modify} change.
+     */
+    public static long generateStudentID(Map<Long, Student> students) {
         if (students.isEmpty())
             return 0;
 
@@ -90,4 +417,37 @@ public class StudentService {
                 .findAny().get();
         return _id > 0 && !students.containsKey(_id - 1) ? _id - 1 : _id + 1;
     }
+
+    private enum CommitResult {
+        /** The server has the changed data, after the base data. */
+        COMMITTED,
+        /** The server had older data than the base and has been brought up to date. */
+        REPAIRED,
+        /** The server has other data or is locked by another writer. */
+        REJECTED
+    }
+
+    private static class StoredData {
+        final long version;
+        /** Random ids of the latest changes, starting with the one that produced the data. */
+        final List<String> commits;
+        final Map<Long, Student> students;
+
+        StoredData(long version, List<String> commits, Map<Long, Student> students) {
+            this.version = version;
+            this.commits = commits;
+            this.students = students;
+        }
+
+        /**
+         * @return Id of the change that produced the data, empty for data written without it.
+         */
+        String getCommit() {
+            return commits.isEmpty() ? "" : commits.get(0);
+        }
+
+        boolean isSameVersion(StoredData other) {
+            return version == other.version && getCommit().equals(other.getCommit());
+        }
+    }
 }
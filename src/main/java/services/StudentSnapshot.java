@@ -0,0 +1,83 @@
+package services;
+
+import entities.Student;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable state of the student data. Every published change gets a new snapshot with a greater version.
+ * <p>
+ * The snapshot version is local to the process, while the data version is the counter stored
+ * in the data file on the server, incremented by every change.
+ */
+public final class StudentSnapshot {
+    static final StudentSnapshot EMPTY = new StudentSnapshot(0, 0, new HashMap<>());
+
+    private final long version;
+    private final long dataVersion;
+    private final Map<Long, Student> students;
+    private volatile String contentHash;
+
+    /**
+     * @param students Map owned by the snapshot from now on, it must not be modified by the caller.
+     */
+    StudentSnapshot(long version, long dataVersion, Map<Long, Student> students) {
+        this.version = version;
+        this.dataVersion = dataVersion;
+        this.students = Collections.unmodifiableMap(students);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getDataVersion() {
+        return dataVersion;
+    }
+
+    /**
+     * @return Unmodifiable map of students by id.
+     */
+    public Map<Long, Student> getStudents() {
+        return students;
+    }
+
+    /**
+     * Unlike the versions, the hash identifies the data across processes and for data files without a version.
+     *
+     * @return Hash of the students, computed on the first call.
+     */
+    public String getContentHash() {
+        if (contentHash == null) {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            students.values().stream()
+                    .sorted(Comparator.comparingLong(Student::getId))
+                    .forEach(student -> digest.update((student.getId() + ":" + student.getName() + "\n").getBytes(StandardCharsets.UTF_8)));
+            StringBuilder sb = new StringBuilder();
+            byte[] hash = digest.digest();
+            for (int i = 0; i < 8; i++)
+                sb.append(String.format("%02x", hash[i]));
+            contentHash = sb.toString();
+        }
+        return contentHash;
+    }
+
+    public Student getStudent(long id) {
+        return students.get(id);
+    }
+
+    public boolean isEmpty() {
+        return students.isEmpty();
+    }
+}